@@ -0,0 +1,61 @@
+package ru.coffeeplanter.photogallery;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.support.v4.util.LruCache;
+
+// In-memory bitmap cache whose budget is measured in bytes rather than in entries.
+public class BitmapMemoryCache extends LruCache<String, Bitmap> {
+
+    private static final float DEFAULT_MEMORY_FRACTION = 0.125f;
+
+    // Fraction of the per-app heap limit (memory class) given to the cache.
+    public static int calculateSize(Context context, float memoryFraction) {
+        if (memoryFraction <= 0 || memoryFraction >= 1) {
+            throw new IllegalArgumentException("memoryFraction must be in (0, 1)");
+        }
+        ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        long memoryClassBytes = activityManager.getMemoryClass() * 1024L * 1024L;
+        return (int) (memoryClassBytes * memoryFraction);
+    }
+
+    public static int calculateDefaultSize(Context context) {
+        return calculateSize(context, DEFAULT_MEMORY_FRACTION);
+    }
+
+    private BitmapPool mBitmapPool;
+
+    public BitmapMemoryCache(int maxSizeBytes) {
+        super(maxSizeBytes);
+    }
+
+    // Bitmaps leaving the cache are handed to the pool for reuse.
+    public void setBitmapPool(BitmapPool bitmapPool) {
+        mBitmapPool = bitmapPool;
+    }
+
+    @Override
+    protected int sizeOf(String key, Bitmap value) {
+        return value.getAllocationByteCount();
+    }
+
+    @Override
+    protected void entryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue) {
+        if (mBitmapPool != null && oldValue != newValue) {
+            mBitmapPool.recycleWhenUnused(oldValue);
+        }
+    }
+
+    public float getHitRatio() {
+        int hits = hitCount();
+        int accesses = hits + missCount();
+        return accesses == 0 ? 0f : (float) hits / accesses;
+    }
+
+    public String getStats() {
+        return String.format("BitmapMemoryCache[size=%d/%d bytes, puts=%d, evictions=%d, hits=%d, misses=%d, hitRatio=%.2f]",
+                size(), maxSize(), putCount(), evictionCount(), hitCount(), missCount(), getHitRatio());
+    }
+
+}
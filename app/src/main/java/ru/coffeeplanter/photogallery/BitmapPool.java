@@ -0,0 +1,128 @@
+package ru.coffeeplanter.photogallery;
+
+import android.graphics.Bitmap;
+
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Keeps bitmaps that fell out of the memory cache so decodes can draw into them
+// (BitmapFactory.Options.inBitmap) instead of allocating. Bitmaps are bucketed by
+// allocation size. A bitmap that is still referenced, e.g. shown in a cell, only
+// enters the pool once its last reference is released.
+public class BitmapPool {
+
+    // Don't hand out a bitmap much bigger than needed, it would pin memory for nothing.
+    private static final int MAX_SIZE_MULTIPLE = 2;
+
+    private final int mMaxSize;
+    private int mSize = 0;
+    // Allocation size -> pooled bitmaps of that size.
+    private final TreeMap<Integer, LinkedList<Bitmap>> mBuckets = new TreeMap<>();
+    // Pooled bitmaps, least recently added first.
+    private final LinkedList<Bitmap> mLru = new LinkedList<>();
+    private final Map<Bitmap, Integer> mReferenceCounts = new IdentityHashMap<>();
+    // Bitmaps that should go into the pool as soon as nothing references them.
+    private final Map<Bitmap, Boolean> mPendingRecycle = new IdentityHashMap<>();
+
+    private int mHitCount = 0;
+    private int mMissCount = 0;
+
+    public BitmapPool(int maxSizeBytes) {
+        mMaxSize = maxSizeBytes;
+    }
+
+    public synchronized void acquire(Bitmap bitmap) {
+        Integer count = mReferenceCounts.get(bitmap);
+        mReferenceCounts.put(bitmap, count == null ? 1 : count + 1);
+    }
+
+    public synchronized void release(Bitmap bitmap) {
+        Integer count = mReferenceCounts.get(bitmap);
+        if (count == null) {
+            return;
+        }
+        if (count > 1) {
+            mReferenceCounts.put(bitmap, count - 1);
+            return;
+        }
+        mReferenceCounts.remove(bitmap);
+        if (mPendingRecycle.remove(bitmap) != null) {
+            put(bitmap);
+        }
+    }
+
+    // Called once the owner (the memory cache) lets go of the bitmap.
+    public synchronized void recycleWhenUnused(Bitmap bitmap) {
+        if (mReferenceCounts.containsKey(bitmap)) {
+            mPendingRecycle.put(bitmap, Boolean.TRUE);
+        } else {
+            put(bitmap);
+        }
+    }
+
+    // Returns a bitmap with room for width x height pixels of the given config, or null.
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        int requiredSize = width * height * getBytesPerPixel(config);
+        Map.Entry<Integer, LinkedList<Bitmap>> entry = mBuckets.ceilingEntry(requiredSize);
+        if (entry == null || entry.getKey() > requiredSize * MAX_SIZE_MULTIPLE) {
+            mMissCount++;
+            return null;
+        }
+        Bitmap bitmap = entry.getValue().removeFirst();
+        if (entry.getValue().isEmpty()) {
+            mBuckets.remove(entry.getKey());
+        }
+        mLru.remove(bitmap);
+        mSize -= entry.getKey();
+        mHitCount++;
+        return bitmap;
+    }
+
+    public synchronized void clear() {
+        mBuckets.clear();
+        mLru.clear();
+        mSize = 0;
+    }
+
+    public synchronized String getStats() {
+        return String.format("BitmapPool[size=%d/%d bytes, bitmaps=%d, referenced=%d, hits=%d, misses=%d]",
+                mSize, mMaxSize, mLru.size(), mReferenceCounts.size(), mHitCount, mMissCount);
+    }
+
+    private void put(Bitmap bitmap) {
+        int size = bitmap.getAllocationByteCount();
+        if (bitmap.isRecycled() || !bitmap.isMutable() || size > mMaxSize) {
+            return;
+        }
+        LinkedList<Bitmap> bucket = mBuckets.get(size);
+        if (bucket == null) {
+            bucket = new LinkedList<>();
+            mBuckets.put(size, bucket);
+        }
+        bucket.add(bitmap);
+        mLru.add(bitmap);
+        mSize += size;
+        while (mSize > mMaxSize) {
+            Bitmap eldest = mLru.removeFirst();
+            int eldestSize = eldest.getAllocationByteCount();
+            LinkedList<Bitmap> eldestBucket = mBuckets.get(eldestSize);
+            eldestBucket.remove(eldest);
+            if (eldestBucket.isEmpty()) {
+                mBuckets.remove(eldestSize);
+            }
+            mSize -= eldestSize;
+        }
+    }
+
+    private static int getBytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+            return 2;
+        } else if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        }
+        return 4;
+    }
+
+}
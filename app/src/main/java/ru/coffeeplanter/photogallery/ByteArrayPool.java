@@ -0,0 +1,62 @@
+package ru.coffeeplanter.photogallery;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+
+// Recycles the byte buffers used for reading and decoding streams, so every
+// thumbnail doesn't allocate its own. Buffers beyond the size limit are left to the GC.
+public class ByteArrayPool {
+
+    private static final Comparator<byte[]> BUFFER_LENGTH_COMPARATOR = new Comparator<byte[]>() {
+        @Override
+        public int compare(byte[] lhs, byte[] rhs) {
+            return lhs.length - rhs.length;
+        }
+    };
+
+    private final int mMaxSize;
+    private int mSize = 0;
+    // Buffers by length, for lookup, and by last use, for eviction.
+    private final List<byte[]> mBuffersBySize = new ArrayList<>();
+    private final List<byte[]> mBuffersByLastUse = new LinkedList<>();
+
+    public ByteArrayPool(int maxSizeBytes) {
+        mMaxSize = maxSizeBytes;
+    }
+
+    // Returns a buffer at least len bytes long.
+    public synchronized byte[] getBuf(int len) {
+        for (int i = 0; i < mBuffersBySize.size(); i++) {
+            byte[] buf = mBuffersBySize.get(i);
+            if (buf.length >= len) {
+                mSize -= buf.length;
+                mBuffersBySize.remove(i);
+                mBuffersByLastUse.remove(buf);
+                return buf;
+            }
+        }
+        return new byte[len];
+    }
+
+    public synchronized void returnBuf(byte[] buf) {
+        if (buf == null || buf.length > mMaxSize) {
+            return;
+        }
+        mBuffersByLastUse.add(buf);
+        int pos = Collections.binarySearch(mBuffersBySize, buf, BUFFER_LENGTH_COMPARATOR);
+        if (pos < 0) {
+            pos = -pos - 1;
+        }
+        mBuffersBySize.add(pos, buf);
+        mSize += buf.length;
+        while (mSize > mMaxSize) {
+            byte[] eldest = mBuffersByLastUse.remove(0);
+            mBuffersBySize.remove(eldest);
+            mSize -= eldest.length;
+        }
+    }
+
+}
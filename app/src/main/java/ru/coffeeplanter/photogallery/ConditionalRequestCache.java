@@ -0,0 +1,140 @@
+package ru.coffeeplanter.photogallery;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+// Responses that came with an ETag or Last-Modified header, kept on disk with their
+// validators so the next request for the same URL can be made conditional and a
+// 304 answered from here. Entries live in a DiskCache of their own, each one
+// the two validators followed by the body as it came.
+public class ConditionalRequestCache {
+
+    private final DiskCache mDiskCache;
+
+    public static ConditionalRequestCache open(File directory, long maxSize) throws IOException {
+        return new ConditionalRequestCache(DiskCache.open(directory, maxSize));
+    }
+
+    private ConditionalRequestCache(DiskCache diskCache) {
+        mDiskCache = diskCache;
+    }
+
+    // Returns null if nothing usable is stored for the URL. The entry holds its file open
+    // until closed, so the body stays readable even if the entry is replaced meanwhile.
+    public Entry get(String url) {
+        FileInputStream in = null;
+        try {
+            in = mDiskCache.openStream(url);
+            if (in == null) {
+                return null;
+            }
+            // DataInputStream doesn't read ahead, so the file is left right at the body.
+            DataInputStream data = new DataInputStream(in);
+            String eTag = data.readUTF();
+            String lastModified = data.readUTF();
+            long bodyLength = in.getChannel().size() - in.getChannel().position();
+            Entry entry = new Entry(eTag.isEmpty() ? null : eTag, lastModified.isEmpty() ? null : lastModified,
+                    in, bodyLength);
+            in = null;
+            return entry;
+        } catch (IOException ioe) {
+            // A truncated entry is as good as none.
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    // Starts storing a response under its validators: the body goes to the editor's output
+    // stream and is kept on commit(). Returns null if the response has no validator, the URL
+    // is forgotten then, or if someone else is storing the same response right now.
+    public DiskCache.Editor edit(String url, String eTag, String lastModified) throws IOException {
+        if (eTag == null && lastModified == null) {
+            mDiskCache.remove(url);
+            return null;
+        }
+        DiskCache.Editor editor = mDiskCache.edit(url);
+        if (editor == null) {
+            return null;
+        }
+        try {
+            DataOutputStream data = new DataOutputStream(editor.getOutputStream());
+            data.writeUTF(eTag != null ? eTag : "");
+            data.writeUTF(lastModified != null ? lastModified : "");
+            data.flush();
+        } catch (IOException ioe) {
+            editor.abort();
+            throw ioe;
+        }
+        return editor;
+    }
+
+    public void remove(String url) throws IOException {
+        mDiskCache.remove(url);
+    }
+
+    public void close() throws IOException {
+        mDiskCache.close();
+    }
+
+    @Override
+    public String toString() {
+        return mDiskCache.toString();
+    }
+
+    private static void closeQuietly(InputStream in) {
+        if (in != null) {
+            try {
+                in.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    public static class Entry {
+
+        private final String mETag;
+        private final String mLastModified;
+        private final InputStream mBody;
+        private final long mBodyLength;
+
+        private Entry(String eTag, String lastModified, InputStream body, long bodyLength) {
+            mETag = eTag;
+            mLastModified = lastModified;
+            mBody = body;
+            mBodyLength = bodyLength;
+        }
+
+        // Can be read once.
+        public InputStream getBody() {
+            return mBody;
+        }
+
+        public long getBodyLength() {
+            return mBodyLength;
+        }
+
+        // Headers that make a request for the same URL conditional on this entry.
+        public Map<String, String> getValidatorHeaders() {
+            Map<String, String> headers = new HashMap<>();
+            if (mETag != null) {
+                headers.put("If-None-Match", mETag);
+            }
+            if (mLastModified != null) {
+                headers.put("If-Modified-Since", mLastModified);
+            }
+            return headers;
+        }
+
+        public void close() {
+            closeQuietly(mBody);
+        }
+    }
+
+}
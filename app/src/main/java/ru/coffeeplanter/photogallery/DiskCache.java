@@ -0,0 +1,464 @@
+package ru.coffeeplanter.photogallery;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Bounded LRU cache of downloaded files, kept in a directory of the app cache: thumbnails,
+// detail photos and validated HTTP responses each have their own.
+// Every change is recorded in a journal, so the cache survives restarts and
+// half-written entries left by a crash are discarded on the next open.
+public class DiskCache {
+
+    private static final String JOURNAL_FILE = "journal";
+    private static final String JOURNAL_FILE_TMP = "journal.tmp";
+    // Still the class's old name, so caches written before the rename stay readable.
+    private static final String MAGIC = "ru.coffeeplanter.photogallery.ThumbnailDiskCache";
+    private static final String VERSION = "1";
+    private static final String CLEAN = "CLEAN";
+    private static final String DIRTY = "DIRTY";
+    private static final String REMOVE = "REMOVE";
+    private static final String READ = "READ";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File mDirectory;
+    private final long mMaxSize;
+    // Key -> entry length in bytes, in access order.
+    private final LinkedHashMap<String, Long> mEntries = new LinkedHashMap<>(0, 0.75f, true);
+    private final Set<String> mEditing = new HashSet<>();
+    private long mSize = 0;
+    private int mRedundantOpCount = 0;
+    private Writer mJournalWriter;
+
+    // Shared instances, one per directory, so that the gallery and the poll service never
+    // append to the same journal from two instances.
+    private static final Map<File, DiskCache> sSharedCaches = new HashMap<>();
+    // Guarded by sSharedCaches.
+    private int mShareCount = 0;
+
+    private int mHitCount = 0;
+    private int mMissCount = 0;
+    private int mPutCount = 0;
+    private int mEvictionCount = 0;
+
+    public static DiskCache open(File directory, long maxSize) throws IOException {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create cache directory " + directory);
+        }
+        DiskCache cache = new DiskCache(directory, maxSize);
+        File journal = new File(directory, JOURNAL_FILE);
+        if (journal.exists()) {
+            try {
+                cache.readJournal(journal);
+                cache.mJournalWriter = new BufferedWriter(
+                        new OutputStreamWriter(new FileOutputStream(journal, true), UTF_8));
+                return cache;
+            } catch (IOException ioe) {
+                // Corrupt journal, start from scratch.
+                cache.deleteContents();
+            }
+        }
+        cache.rebuildJournal();
+        return cache;
+    }
+
+    // Like open(), but returns the instance already open for the directory if there is one.
+    // Every acquire() must be paired with a release().
+    public static DiskCache acquire(File directory, long maxSize) throws IOException {
+        File key = directory.getAbsoluteFile();
+        synchronized (sSharedCaches) {
+            DiskCache cache = sSharedCaches.get(key);
+            if (cache == null) {
+                cache = open(directory, maxSize);
+                sSharedCaches.put(key, cache);
+            }
+            cache.mShareCount++;
+            return cache;
+        }
+    }
+
+    // Closes the cache once its last user has released it.
+    public static void release(DiskCache cache) throws IOException {
+        synchronized (sSharedCaches) {
+            if (--cache.mShareCount > 0) {
+                return;
+            }
+            sSharedCaches.remove(cache.mDirectory.getAbsoluteFile());
+        }
+        cache.close();
+    }
+
+    private DiskCache(File directory, long maxSize) {
+        mDirectory = directory;
+        mMaxSize = maxSize;
+    }
+
+    // Returns a stream over the cached bytes, or null on a miss. The caller closes it.
+    public synchronized FileInputStream openStream(String url) throws IOException {
+        String key = keyFor(url);
+        if (!mEntries.containsKey(key)) {
+            mMissCount++;
+            return null;
+        }
+        FileInputStream in;
+        try {
+            in = new FileInputStream(getCleanFile(key));
+        } catch (FileNotFoundException fnfe) {
+            // The file vanished under us (e.g. the system cleared the cache directory).
+            removeEntry(key);
+            mMissCount++;
+            return null;
+        }
+        mEntries.get(key);
+        mHitCount++;
+        appendJournal(READ, key);
+        return in;
+    }
+
+    public synchronized boolean contains(String url) {
+        return mEntries.containsKey(keyFor(url));
+    }
+
+    // Starts writing an entry. Returns null if the entry is already being written.
+    public synchronized Editor edit(String url) throws IOException {
+        String key = keyFor(url);
+        if (mEditing.contains(key)) {
+            return null;
+        }
+        appendJournal(DIRTY, key);
+        mJournalWriter.flush();
+        mEditing.add(key);
+        return new Editor(key);
+    }
+
+    public synchronized boolean remove(String url) throws IOException {
+        String key = keyFor(url);
+        if (!mEntries.containsKey(key)) {
+            return false;
+        }
+        removeEntry(key);
+        compactJournalIfNeeded();
+        return true;
+    }
+
+    public synchronized void close() throws IOException {
+        if (mJournalWriter != null) {
+            mJournalWriter.close();
+            mJournalWriter = null;
+        }
+    }
+
+    public synchronized long size() {
+        return mSize;
+    }
+
+    public long maxSize() {
+        return mMaxSize;
+    }
+
+    public synchronized int hitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int missCount() {
+        return mMissCount;
+    }
+
+    public synchronized int putCount() {
+        return mPutCount;
+    }
+
+    public synchronized int evictionCount() {
+        return mEvictionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("DiskCache[size=%d/%d, entries=%d, hits=%d, misses=%d, puts=%d, evictions=%d]",
+                mSize, mMaxSize, mEntries.size(), mHitCount, mMissCount, mPutCount, mEvictionCount);
+    }
+
+    static String keyFor(String url) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            byte[] hash = digest.digest(url.getBytes(UTF_8));
+            StringBuilder sb = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+                sb.append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new AssertionError(nsae);
+        }
+    }
+
+    private void readJournal(File journal) throws IOException {
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(journal), UTF_8));
+        List<String> dirtyKeys = new ArrayList<>();
+        int lineCount = 0;
+        try {
+            if (!MAGIC.equals(reader.readLine()) || !VERSION.equals(reader.readLine())) {
+                throw new IOException("Unexpected journal header");
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineCount++;
+                String[] parts = line.split(" ");
+                if (parts.length < 2) {
+                    throw new IOException("Unexpected journal line: " + line);
+                }
+                String key = parts[1];
+                switch (parts[0]) {
+                    case CLEAN:
+                        if (parts.length != 3) {
+                            throw new IOException("Unexpected journal line: " + line);
+                        }
+                        Long oldLength = mEntries.put(key, Long.parseLong(parts[2]));
+                        if (oldLength != null) {
+                            mSize -= oldLength;
+                        }
+                        mSize += Long.parseLong(parts[2]);
+                        dirtyKeys.remove(key);
+                        break;
+                    case DIRTY:
+                        dirtyKeys.add(key);
+                        break;
+                    case REMOVE:
+                        Long removedLength = mEntries.remove(key);
+                        if (removedLength != null) {
+                            mSize -= removedLength;
+                        }
+                        dirtyKeys.remove(key);
+                        break;
+                    case READ:
+                        mEntries.get(key);
+                        break;
+                    default:
+                        throw new IOException("Unexpected journal line: " + line);
+                }
+            }
+        } catch (NumberFormatException nfe) {
+            throw new IOException("Unexpected journal line", nfe);
+        } finally {
+            reader.close();
+        }
+        mRedundantOpCount = lineCount - mEntries.size();
+        // Writes that never reached CLEAN were interrupted, drop whatever they left behind.
+        for (String key : dirtyKeys) {
+            getDirtyFile(key).delete();
+        }
+        Iterator<Map.Entry<String, Long>> it = mEntries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Long> entry = it.next();
+            if (getCleanFile(entry.getKey()).length() != entry.getValue()) {
+                getCleanFile(entry.getKey()).delete();
+                mSize -= entry.getValue();
+                it.remove();
+            }
+        }
+    }
+
+    private void rebuildJournal() throws IOException {
+        if (mJournalWriter != null) {
+            mJournalWriter.close();
+        }
+        File journalTmp = new File(mDirectory, JOURNAL_FILE_TMP);
+        Writer writer = new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(journalTmp), UTF_8));
+        try {
+            writer.write(MAGIC + "\n" + VERSION + "\n");
+            // Least recently used first, so that replaying keeps the access order.
+            for (Map.Entry<String, Long> entry : mEntries.entrySet()) {
+                writer.write(CLEAN + " " + entry.getKey() + " " + entry.getValue() + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+        File journal = new File(mDirectory, JOURNAL_FILE);
+        if (!journalTmp.renameTo(journal)) {
+            throw new IOException("Unable to replace journal " + journal);
+        }
+        mRedundantOpCount = 0;
+        mJournalWriter = new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(journal, true), UTF_8));
+    }
+
+    private void compactJournalIfNeeded() throws IOException {
+        if (mRedundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD
+                && mRedundantOpCount >= mEntries.size()) {
+            rebuildJournal();
+        }
+    }
+
+    private void appendJournal(String op, String args) throws IOException {
+        if (mJournalWriter == null) {
+            throw new IOException("Cache is closed");
+        }
+        mJournalWriter.write(op + " " + args + "\n");
+        if (!CLEAN.equals(op)) {
+            mRedundantOpCount++;
+        }
+    }
+
+    private void trimToSize() throws IOException {
+        while (mSize > mMaxSize && !mEntries.isEmpty()) {
+            String eldestKey = mEntries.keySet().iterator().next();
+            removeEntry(eldestKey);
+            mEvictionCount++;
+        }
+    }
+
+    private void removeEntry(String key) throws IOException {
+        Long length = mEntries.remove(key);
+        if (length != null) {
+            mSize -= length;
+        }
+        getCleanFile(key).delete();
+        appendJournal(REMOVE, key);
+    }
+
+    private void deleteContents() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mEntries.clear();
+        mSize = 0;
+    }
+
+    private File getCleanFile(String key) {
+        return new File(mDirectory, key);
+    }
+
+    private File getDirtyFile(String key) {
+        return new File(mDirectory, key + TMP_SUFFIX);
+    }
+
+    private synchronized void completeEdit(Editor editor, boolean success) throws IOException {
+        String key = editor.mKey;
+        mEditing.remove(key);
+        if (!success) {
+            abandonEdit(key);
+            return;
+        }
+        File cleanFile = getCleanFile(key);
+        if (!getDirtyFile(key).renameTo(cleanFile)) {
+            abandonEdit(key);
+            throw new IOException("Unable to commit cache entry " + cleanFile);
+        }
+        long length = cleanFile.length();
+        Long oldLength = mEntries.put(key, length);
+        if (oldLength != null) {
+            mSize -= oldLength;
+        }
+        mSize += length;
+        mPutCount++;
+        appendJournal(CLEAN, key + " " + length);
+        mJournalWriter.flush();
+        trimToSize();
+        compactJournalIfNeeded();
+    }
+
+    // A failed write leaves the entry as it was: a previous version stays readable and its
+    // DIRTY line is closed with CLEAN again, a new entry is dropped.
+    private void abandonEdit(String key) throws IOException {
+        getDirtyFile(key).delete();
+        Long length = mEntries.get(key);
+        if (length != null) {
+            appendJournal(CLEAN, key + " " + length);
+        } else {
+            appendJournal(REMOVE, key);
+        }
+    }
+
+    // Writes go to a temporary file, which only replaces the entry on commit().
+    public class Editor {
+
+        private final String mKey;
+        private FileOutputStream mOutputStream;
+        private boolean mDone = false;
+
+        private Editor(String key) {
+            mKey = key;
+        }
+
+        // The file being written, readable back while the entry is still being written.
+        public File getFile() {
+            return getDirtyFile(mKey);
+        }
+
+        public OutputStream getOutputStream() throws IOException {
+            if (mOutputStream == null) {
+                mOutputStream = new FileOutputStream(getFile());
+            }
+            return mOutputStream;
+        }
+
+        public void commit() throws IOException {
+            if (mDone) {
+                return;
+            }
+            mDone = true;
+            try {
+                // Not synced to disk: that cost every thumbnail a disk flush. An entry cut short by a
+                // power loss fails to decode and is dropped by whoever reads it, like any bad entry.
+                OutputStream out = getOutputStream();
+                out.flush();
+                mOutputStream.close();
+            } catch (IOException ioe) {
+                completeEdit(this, false);
+                throw ioe;
+            }
+            completeEdit(this, true);
+        }
+
+        public void abort() {
+            if (mDone) {
+                return;
+            }
+            mDone = true;
+            try {
+                if (mOutputStream != null) {
+                    mOutputStream.close();
+                }
+            } catch (IOException ignored) {
+                // The file is deleted below anyway.
+            } finally {
+                try {
+                    completeEdit(this, false);
+                } catch (IOException ignored) {
+                    // The temporary file is dropped on the next open anyway.
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,164 @@
+package ru.coffeeplanter.photogallery;
+
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.List;
+
+// Downloads images straight into a disk cache without decoding them, by default thumbnails
+// into the thumbnail cache so the gallery shows them from disk the next time it's opened.
+// Only the image header is checked before an entry is kept. Runs on the calling thread;
+// meant for background work such as the poll service.
+public class DiskPrefetcher {
+
+    private static final String TAG = "DiskPrefetcher";
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final File mDirectory;
+    private final long mMaxSize;
+    // Downloads stop once either limit is reached; the last one may overshoot the bytes.
+    private int mRequestLimit = Integer.MAX_VALUE;
+    private long mByteLimit = Long.MAX_VALUE;
+    private int mRequestCount = 0;
+    private int mStoredCount = 0;
+    private int mCachedCount = 0;
+    private long mBytesDownloaded = 0;
+
+    public DiskPrefetcher(File directory) {
+        this(directory, ThumbnailDownloader.DISK_CACHE_SIZE);
+    }
+
+    // For a disk cache other than the thumbnail one.
+    public DiskPrefetcher(File directory, long maxSize) {
+        mDirectory = directory;
+        mMaxSize = maxSize;
+    }
+
+    public void setRequestLimit(int requestLimit) {
+        mRequestLimit = requestLimit;
+    }
+
+    public void setByteLimit(long byteLimit) {
+        mByteLimit = byteLimit;
+    }
+
+    // Returns how many thumbnails were downloaded; those already on disk are skipped.
+    public int prefetch(List<GalleryItem> items) {
+        List<String> urls = new ArrayList<>(items.size());
+        for (GalleryItem item : items) {
+            urls.add(item.getUrl());
+        }
+        return prefetchUrls(urls);
+    }
+
+    public int prefetchUrls(List<String> urls) {
+        DiskCache diskCache;
+        try {
+            diskCache = DiskCache.acquire(mDirectory, mMaxSize);
+        } catch (IOException ioe) {
+            Log.e(TAG, "Error opening disk cache", ioe);
+            return 0;
+        }
+        int storedCount = 0;
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try {
+            for (String url : urls) {
+                if (url == null) {
+                    continue;
+                }
+                if (diskCache.contains(url)) {
+                    mCachedCount++;
+                    continue;
+                }
+                if (Thread.currentThread().isInterrupted()
+                        || mRequestCount >= mRequestLimit || mBytesDownloaded >= mByteLimit) {
+                    break;
+                }
+                mRequestCount++;
+                try {
+                    if (store(diskCache, url, buffer)) {
+                        storedCount++;
+                    }
+                } catch (IOException ioe) {
+                    Log.e(TAG, "Error prefetching " + url, ioe);
+                }
+            }
+        } finally {
+            try {
+                DiskCache.release(diskCache);
+            } catch (IOException ioe) {
+                Log.e(TAG, "Error closing disk cache", ioe);
+            }
+        }
+        mStoredCount += storedCount;
+        return storedCount;
+    }
+
+    public int getRequestCount() {
+        return mRequestCount;
+    }
+
+    public int getStoredCount() {
+        return mStoredCount;
+    }
+
+    // Thumbnails that were already on disk.
+    public int getCachedCount() {
+        return mCachedCount;
+    }
+
+    public long getBytesDownloaded() {
+        return mBytesDownloaded;
+    }
+
+    // Reads only the header, the pixels aren't decoded.
+    private static boolean isImage(File file) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getPath(), options);
+        return options.outWidth > 0 && options.outHeight > 0;
+    }
+
+    private boolean store(DiskCache diskCache, String url, byte[] buffer) throws IOException {
+        DiskCache.Editor editor = diskCache.edit(url);
+        if (editor == null) {
+            // The gallery is downloading it right now.
+            return false;
+        }
+        HttpClient.Response response = null;
+        try {
+            response = HttpClient.getInstance().open(url);
+            if (response.getCode() != HttpURLConnection.HTTP_OK) {
+                throw new IOException(response.getMessage() + ": with " + url);
+            }
+            InputStream in = response.getInputStream();
+            OutputStream out = editor.getOutputStream();
+            int bytesRead;
+            while ((bytesRead = in.read(buffer)) > 0) {
+                out.write(buffer, 0, bytesRead);
+                mBytesDownloaded += bytesRead;
+            }
+            out.flush();
+            if (!isImage(editor.getFile())) {
+                // An error page or a truncated body; the gallery would only fail on it later.
+                Log.e(TAG, "Not an image, not stored: " + url);
+                return false;
+            }
+            // Closes the file as well.
+            editor.commit();
+            return true;
+        } finally {
+            editor.abort();
+            if (response != null) {
+                response.close();
+            }
+        }
+    }
+
+}
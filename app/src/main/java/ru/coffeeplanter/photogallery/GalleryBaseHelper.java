@@ -0,0 +1,66 @@
+package ru.coffeeplanter.photogallery;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+import ru.coffeeplanter.photogallery.GalleryDbSchema.PageTable;
+import ru.coffeeplanter.photogallery.GalleryDbSchema.PhotoTable;
+import ru.coffeeplanter.photogallery.GalleryDbSchema.SeenIdsTable;
+
+public class GalleryBaseHelper extends SQLiteOpenHelper {
+
+    private static final int VERSION = 3;
+    private static final String DATABASE_NAME = "gallery.db";
+
+    public GalleryBaseHelper(Context context) {
+        super(context, DATABASE_NAME, null, VERSION);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("create table " + PhotoTable.NAME + "("
+                + PhotoTable.Cols.QUERY_KEY + " text not null, "
+                + PhotoTable.Cols.PAGE + " integer not null, "
+                + PhotoTable.Cols.POSITION + " integer not null, "
+                + PhotoTable.Cols.PHOTO_ID + " text, "
+                + PhotoTable.Cols.TITLE + " text, "
+                + PhotoTable.Cols.URL + " text, "
+                + PhotoTable.Cols.OWNER + " text)");
+        // Pages are always read and replaced as a whole, in position order.
+        db.execSQL("create unique index photos_query_page_position on " + PhotoTable.NAME + "("
+                + PhotoTable.Cols.QUERY_KEY + ", "
+                + PhotoTable.Cols.PAGE + ", "
+                + PhotoTable.Cols.POSITION + ")");
+        db.execSQL("create table " + PageTable.NAME + "("
+                + PageTable.Cols.QUERY_KEY + " text not null, "
+                + PageTable.Cols.PAGE + " integer not null, "
+                + PageTable.Cols.PAGES + " integer not null, "
+                + PageTable.Cols.PER_PAGE + " integer not null, "
+                + PageTable.Cols.FETCHED_AT + " integer not null, "
+                + PageTable.Cols.LAST_USED + " integer not null, "
+                + "primary key (" + PageTable.Cols.QUERY_KEY + ", " + PageTable.Cols.PAGE + "))");
+        createSeenIdsTable(db);
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (oldVersion < 2) {
+            createSeenIdsTable(db);
+        }
+        if (oldVersion < 3) {
+            db.execSQL("alter table " + PageTable.NAME + " add column "
+                    + PageTable.Cols.LAST_USED + " integer not null default 0");
+            db.execSQL("update " + PageTable.NAME + " set "
+                    + PageTable.Cols.LAST_USED + " = " + PageTable.Cols.FETCHED_AT);
+        }
+    }
+
+    private static void createSeenIdsTable(SQLiteDatabase db) {
+        db.execSQL("create table " + SeenIdsTable.NAME + "("
+                + SeenIdsTable.Cols.QUERY_KEY + " text primary key, "
+                + SeenIdsTable.Cols.IDS + " blob not null, "
+                + SeenIdsTable.Cols.UPDATED_AT + " integer not null)");
+    }
+
+}
@@ -0,0 +1,46 @@
+package ru.coffeeplanter.photogallery;
+
+public class GalleryDbSchema {
+
+    // Photos of every stored page, in the order the server returned them.
+    public static final class PhotoTable {
+        public static final String NAME = "photos";
+
+        public static final class Cols {
+            public static final String QUERY_KEY = "query_key";
+            public static final String PAGE = "page";
+            public static final String POSITION = "position";
+            public static final String PHOTO_ID = "photo_id";
+            public static final String TITLE = "title";
+            public static final String URL = "url";
+            public static final String OWNER = "owner";
+        }
+    }
+
+    // One row per stored page, with the paging numbers that came with it.
+    public static final class PageTable {
+        public static final String NAME = "pages";
+
+        public static final class Cols {
+            public static final String QUERY_KEY = "query_key";
+            public static final String PAGE = "page";
+            public static final String PAGES = "pages";
+            public static final String PER_PAGE = "per_page";
+            public static final String FETCHED_AT = "fetched_at";
+            // Last time the query's pages were fetched or read back, the same for all its pages.
+            public static final String LAST_USED = "last_used";
+        }
+    }
+
+    // Photo ids the background poll has already seen, per query, packed by SeenPhotoIds.
+    public static final class SeenIdsTable {
+        public static final String NAME = "seen_ids";
+
+        public static final class Cols {
+            public static final String QUERY_KEY = "query_key";
+            public static final String IDS = "ids";
+            public static final String UPDATED_AT = "updated_at";
+        }
+    }
+
+}
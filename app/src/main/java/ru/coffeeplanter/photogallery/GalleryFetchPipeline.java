@@ -0,0 +1,203 @@
+package ru.coffeeplanter.photogallery;
+
+import android.os.Handler;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Runs the gallery's list loads (stored pages, network pages) on its own small pool, and
+// list diffs on a thread of their own so they never wait behind the network, and hands
+// the results to the main thread. Both queues are bounded; a job that doesn't fit is
+// reported to its callback as failed. Every job belongs to the generation it was
+// submitted in; cancelAll() starts a new one, interrupts what is still running and
+// makes sure no result of the old generation is delivered.
+public class GalleryFetchPipeline {
+
+    private static final String TAG = "GalleryFetchPipeline";
+    private static final int THREAD_COUNT = 3;
+    // Room for a screenful of page reloads on top of the next-page loads.
+    private static final int QUEUE_CAPACITY = 16;
+    // Only the latest diff matters, the ones before it are cancelled along with their generation.
+    private static final int COMPUTATION_QUEUE_CAPACITY = 4;
+
+    private final Handler mResponseHandler;
+    private final ThreadPoolExecutor mExecutor;
+    private final ThreadPoolExecutor mComputationExecutor;
+    // Guarded by this.
+    private final Set<Request<?>> mRequests = new HashSet<>();
+    private volatile int mGeneration = 0;
+    private volatile boolean mHasQuit = false;
+    private final AtomicInteger mSubmittedCount = new AtomicInteger();
+    private final AtomicInteger mDroppedCount = new AtomicInteger();
+    private final AtomicInteger mRejectedCount = new AtomicInteger();
+
+    public interface Job<R> {
+        // Runs on a worker thread; should give up early once the thread is interrupted.
+        R run();
+    }
+
+    public interface Callback<R> {
+        // Runs on the main thread, only if the job's generation is still the current one.
+        // The result is null if the job threw or didn't fit in the queue.
+        void onResult(R result);
+    }
+
+    public GalleryFetchPipeline(Handler responseHandler) {
+        mResponseHandler = responseHandler;
+        mExecutor = newExecutor(THREAD_COUNT, QUEUE_CAPACITY, "GalleryFetch #");
+        mComputationExecutor = newExecutor(1, COMPUTATION_QUEUE_CAPACITY, "GalleryDiff #");
+    }
+
+    // AbortPolicy, so that submit() learns about a rejected job and can report it.
+    private static ThreadPoolExecutor newExecutor(int threadCount, int queueCapacity, final String threadName) {
+        ThreadFactory threadFactory = new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger(1);
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, threadName + mCount.getAndIncrement());
+            }
+        };
+        return new ThreadPoolExecutor(threadCount, threadCount, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(queueCapacity), threadFactory, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    public int getGeneration() {
+        return mGeneration;
+    }
+
+    // For jobs that wait on the network or the disk. Main thread only.
+    public <R> Request<R> submit(Job<R> job, Callback<R> callback) {
+        return submit(mExecutor, job, callback);
+    }
+
+    // For jobs that only keep the CPU busy, such as list diffs. Main thread only.
+    public <R> Request<R> submitComputation(Job<R> job, Callback<R> callback) {
+        return submit(mComputationExecutor, job, callback);
+    }
+
+    private <R> Request<R> submit(ThreadPoolExecutor executor, Job<R> job, Callback<R> callback) {
+        Request<R> request = new Request<>(mGeneration, job, callback);
+        mSubmittedCount.incrementAndGet();
+        synchronized (this) {
+            mRequests.add(request);
+            try {
+                request.mFuture = executor.submit(request);
+            } catch (RejectedExecutionException ree) {
+                mRejectedCount.incrementAndGet();
+                Log.e(TAG, "Fetch queue full, job rejected");
+                request.deliver(null);
+            }
+        }
+        return request;
+    }
+
+    // Drops every request submitted so far, queued, running or about to be delivered.
+    // Main thread only.
+    public void cancelAll() {
+        mGeneration++;
+        List<Request<?>> requests;
+        synchronized (this) {
+            requests = new ArrayList<>(mRequests);
+        }
+        for (Request<?> request : requests) {
+            request.cancel();
+        }
+        // Cancelled jobs would otherwise hold their place in the bounded queues until a worker gets to them.
+        mExecutor.purge();
+        mComputationExecutor.purge();
+    }
+
+    public void quit() {
+        mHasQuit = true;
+        cancelAll();
+        mExecutor.shutdownNow();
+        mComputationExecutor.shutdownNow();
+        Log.i(TAG, "Requests submitted: " + mSubmittedCount.get() + ", dropped as stale: " + mDroppedCount.get()
+                + ", rejected: " + mRejectedCount.get());
+    }
+
+    private synchronized void remove(Request<?> request) {
+        mRequests.remove(request);
+    }
+
+    public class Request<R> implements Runnable {
+
+        private final int mGeneration;
+        private final Job<R> mJob;
+        private final Callback<R> mCallback;
+        private Future<?> mFuture;
+        private volatile boolean mCancelled = false;
+
+        private Request(int generation, Job<R> job, Callback<R> callback) {
+            mGeneration = generation;
+            mJob = job;
+            mCallback = callback;
+        }
+
+        public int getGeneration() {
+            return mGeneration;
+        }
+
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+
+        // Main thread only.
+        public void cancel() {
+            mCancelled = true;
+            synchronized (GalleryFetchPipeline.this) {
+                if (mFuture != null) {
+                    mFuture.cancel(true);
+                }
+            }
+            remove(this);
+        }
+
+        @Override
+        public void run() {
+            if (mCancelled) {
+                return;
+            }
+            R jobResult = null;
+            try {
+                jobResult = mJob.run();
+            } catch (RuntimeException re) {
+                Log.e(TAG, "Fetch job failed", re);
+            }
+            deliver(jobResult);
+        }
+
+        private void deliver(final R result) {
+            mResponseHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    remove(Request.this);
+                    if (mHasQuit || mCancelled || mGeneration != GalleryFetchPipeline.this.mGeneration) {
+                        mDroppedCount.incrementAndGet();
+                        return;
+                    }
+                    mCallback.onResult(result);
+                }
+            });
+        }
+    }
+
+}
@@ -2,27 +2,45 @@ package ru.coffeeplanter.photogallery;
 
 import android.net.Uri;
 
-import com.google.gson.annotations.SerializedName;
-
+import com.google.gson.TypeAdapter;
+import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+
+// Kept compact, a long session holds thousands of these. A numeric id is stored as a
+// long and the owner is interned. A Flickr static URL, prefix/server/id_secret_suffix,
+// is kept as its parts with the prefix and suffix interned, and rebuilt on demand;
+// any other URL is kept as it is.
+@JsonAdapter(GalleryItem.GsonAdapter.class)
 public class GalleryItem {
 
-    @SerializedName("title")
+    private static final long NO_ID = -1;
+    private static final int SECRET_LENGTH = 10;
+
     private String mCaption;
-    @SerializedName("id")
-    private String mId;
-    @SerializedName("url_s")
-    private String mUrl;
-    @SerializedName("owner")
+    // NO_ID if there's no id or it isn't a plain number, mIdString holds it then.
+    private long mId = NO_ID;
+    private String mIdString;
     private String mOwner;
-
+    // Either mUrl, or the parts of the URL with mUrlPrefix set.
+    private String mUrl;
+    private String mUrlPrefix;
+    private int mUrlServer;
+    private long mUrlSecret;
+    private String mUrlSuffix;
+    // Built on first use.
+    private Uri mPhotoPageUri;
 
     public GalleryItem() {
     }
 
     public GalleryItem(String caption, String id, String url) {
         mCaption = caption;
-        mId = id;
-        mUrl = url;
+        setId(id);
+        setUrl(url);
     }
 
     @Override
@@ -31,11 +49,14 @@ public class GalleryItem {
     }
 
     public Uri getPhotoPageUri() {
-        return Uri.parse("https://www.flickr.com/photos")
-                .buildUpon()
-                .appendPath(mOwner)
-                .appendPath(mId)
-                .build();
+        if (mPhotoPageUri == null) {
+            mPhotoPageUri = Uri.parse("https://www.flickr.com/photos")
+                    .buildUpon()
+                    .appendPath(mOwner)
+                    .appendPath(getId())
+                    .build();
+        }
+        return mPhotoPageUri;
     }
 
     public String getCaption() {
@@ -47,19 +68,84 @@ public class GalleryItem {
     }
 
     public String getId() {
-        return mId;
+        return mId != NO_ID ? Long.toString(mId) : mIdString;
     }
 
     public void setId(String id) {
-        mId = id;
+        // The URL parts depend on the id.
+        String url = getUrl();
+        mId = NO_ID;
+        mIdString = null;
+        if (id != null) {
+            try {
+                long numericId = Long.parseLong(id);
+                if (numericId >= 0 && Long.toString(numericId).equals(id)) {
+                    mId = numericId;
+                }
+            } catch (NumberFormatException ignored) {
+            }
+            if (mId == NO_ID) {
+                mIdString = id;
+            }
+        }
+        setUrl(url);
+        mPhotoPageUri = null;
+    }
+
+    // The id as a number, or -1 if it isn't one.
+    public long getNumericId() {
+        return mId;
+    }
+
+    public boolean hasSameId(GalleryItem other) {
+        if (mId != NO_ID || other.mId != NO_ID) {
+            return mId == other.mId;
+        }
+        return mIdString != null && mIdString.equals(other.mIdString);
     }
 
     public String getUrl() {
-        return mUrl;
+        if (mUrlPrefix == null) {
+            return mUrl;
+        }
+        String secret = Long.toHexString(mUrlSecret);
+        StringBuilder sb = new StringBuilder(mUrlPrefix.length() + mUrlSuffix.length() + 40);
+        sb.append(mUrlPrefix).append(mUrlServer).append('/').append(mId).append('_');
+        for (int i = secret.length(); i < SECRET_LENGTH; i++) {
+            sb.append('0');
+        }
+        return sb.append(secret).append(mUrlSuffix).toString();
+    }
+
+    // The same photo in another Flickr size, e.g. 'z' for 640 or 'b' for 1024 pixels on the
+    // long side. Null if the URL isn't a Flickr one the size can be swapped in.
+    public String getSizedUrl(char size) {
+        if (mUrlPrefix == null || !mUrlSuffix.startsWith("_") || mUrlSuffix.indexOf('.') != 2) {
+            return null;
+        }
+        String url = getUrl();
+        int sizeStart = url.length() - mUrlSuffix.length() + 1;
+        return url.substring(0, sizeStart) + size + url.substring(sizeStart + 1);
     }
 
     public void setUrl(String url) {
-        mUrl = url;
+        mUrl = null;
+        mUrlPrefix = null;
+        mUrlSuffix = null;
+        if (url != null && !splitUrl(url)) {
+            mUrl = url;
+        }
+    }
+
+    // Compares without building either URL.
+    public boolean hasSameUrl(GalleryItem other) {
+        if (mUrlPrefix != null && other.mUrlPrefix != null) {
+            // Interned, so the same text is the same instance.
+            return mUrlPrefix == other.mUrlPrefix && mUrlSuffix == other.mUrlSuffix
+                    && mUrlServer == other.mUrlServer && mId == other.mId && mUrlSecret == other.mUrlSecret;
+        }
+        String url = getUrl();
+        return url == null ? other.getUrl() == null : url.equals(other.getUrl());
     }
 
     public String getOwner() {
@@ -67,7 +153,64 @@ public class GalleryItem {
     }
 
     public void setOwner(String owner) {
-        mOwner = owner;
+        mOwner = owner != null ? owner.intern() : null;
+        mPhotoPageUri = null;
+    }
+
+    // Takes the URL apart if it has the expected shape and rebuilds to exactly the same text.
+    private boolean splitUrl(String url) {
+        if (mId == NO_ID) {
+            return false;
+        }
+        int nameStart = url.lastIndexOf('/') + 1;
+        int serverStart = nameStart > 1 ? url.lastIndexOf('/', nameStart - 2) + 1 : 0;
+        String idPart = mId + "_";
+        int secretStart = nameStart + idPart.length();
+        int secretEnd = secretStart + SECRET_LENGTH;
+        if (serverStart == 0 || !url.startsWith(idPart, nameStart) || secretEnd > url.length()) {
+            return false;
+        }
+        try {
+            mUrlServer = Integer.parseInt(url.substring(serverStart, nameStart - 1));
+            mUrlSecret = Long.parseLong(url.substring(secretStart, secretEnd), 16);
+        } catch (NumberFormatException nfe) {
+            return false;
+        }
+        mUrlPrefix = url.substring(0, serverStart).intern();
+        mUrlSuffix = url.substring(secretEnd).intern();
+        if (!url.equals(getUrl())) {
+            mUrlPrefix = null;
+            mUrlSuffix = null;
+            return false;
+        }
+        return true;
+    }
+
+    // Lets Gson bind photo list items the way PhotoListParser reads them.
+    static class GsonAdapter extends TypeAdapter<GalleryItem> {
+
+        @Override
+        public void write(JsonWriter out, GalleryItem item) throws IOException {
+            if (item == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("id").value(item.getId());
+            out.name("title").value(item.getCaption());
+            out.name("url_s").value(item.getUrl());
+            out.name("owner").value(item.getOwner());
+            out.endObject();
+        }
+
+        @Override
+        public GalleryItem read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            return PhotoListParser.readItem(in);
+        }
     }
 
 }
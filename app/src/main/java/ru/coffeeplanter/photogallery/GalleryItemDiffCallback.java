@@ -0,0 +1,42 @@
+package ru.coffeeplanter.photogallery;
+
+import android.support.v7.util.DiffUtil;
+
+import java.util.List;
+
+// Matches gallery items by photo id. Null items (pages not loaded) never match,
+// so their cells are simply rebound.
+public class GalleryItemDiffCallback extends DiffUtil.Callback {
+
+    private final List<GalleryItem> mOldItems;
+    private final List<GalleryItem> mNewItems;
+
+    public GalleryItemDiffCallback(List<GalleryItem> oldItems, List<GalleryItem> newItems) {
+        mOldItems = oldItems;
+        mNewItems = newItems;
+    }
+
+    @Override
+    public int getOldListSize() {
+        return mOldItems.size();
+    }
+
+    @Override
+    public int getNewListSize() {
+        return mNewItems.size();
+    }
+
+    @Override
+    public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+        GalleryItem oldItem = mOldItems.get(oldItemPosition);
+        GalleryItem newItem = mNewItems.get(newItemPosition);
+        return oldItem != null && newItem != null && oldItem.hasSameId(newItem);
+    }
+
+    // A cell only shows the thumbnail.
+    @Override
+    public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+        return mOldItems.get(oldItemPosition).hasSameUrl(mNewItems.get(newItemPosition));
+    }
+
+}
@@ -0,0 +1,174 @@
+package ru.coffeeplanter.photogallery;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// The gallery as the adapter sees it: every page loaded so far keeps its positions,
+// but only the pages around the viewport hold their items. Pages that scroll far
+// away are dropped and asked for again through the callback when they come back
+// into range; until then their positions read as null. Main thread only.
+public class GalleryPagingSource extends AbstractList<GalleryItem> {
+
+    // Pages kept on each side of the page in the middle of the viewport.
+    private static final int WINDOW_PAGES_AROUND = 2;
+
+    // Start position of every known page, page n at index n - 1, and one past the end.
+    private int[] mPageStarts = new int[] {0};
+    private int mPageCount = 0;
+    private final Map<Integer, List<GalleryItem>> mResidentPages = new HashMap<>();
+    private final Set<Integer> mRequestedPages = new HashSet<>();
+    private int mGeneration = 0;
+    // Empty until the first viewport is known.
+    private int mFirstWindowPage = 1;
+    private int mLastWindowPage = 0;
+    private Callback mCallback;
+
+    public interface Callback {
+        // The page was dropped earlier and is back within the window.
+        void onPageNeeded(int generation, int page);
+    }
+
+    public void setCallback(Callback callback) {
+        mCallback = callback;
+    }
+
+    @Override
+    public GalleryItem get(int position) {
+        if (position < 0 || position >= size()) {
+            throw new IndexOutOfBoundsException("Position " + position + ", size " + size());
+        }
+        int page = getPageForPosition(position);
+        List<GalleryItem> items = mResidentPages.get(page);
+        int index = position - mPageStarts[page - 1];
+        // A reloaded page may have come back shorter than it was, its tail stays empty.
+        if (items == null || index >= items.size()) {
+            return null;
+        }
+        return items.get(index);
+    }
+
+    @Override
+    public int size() {
+        return mPageStarts[mPageCount];
+    }
+
+    // Changes whenever the list is cleared, so loads started for the old list can be told apart.
+    public int getGeneration() {
+        return mGeneration;
+    }
+
+    public int getPageCount() {
+        return mPageCount;
+    }
+
+    // Changes whenever positions are added or removed; restoring a dropped page doesn't count.
+    public int getModificationCount() {
+        return modCount;
+    }
+
+    @Override
+    public void clear() {
+        mPageStarts = new int[] {0};
+        mPageCount = 0;
+        mResidentPages.clear();
+        mRequestedPages.clear();
+        mFirstWindowPage = 1;
+        mLastWindowPage = 0;
+        mGeneration++;
+        modCount++;
+    }
+
+    // Adds the page after the last known one. Returns the position of its first item,
+    // or -1 if it's not the next page.
+    public int appendPage(int page, List<GalleryItem> items) {
+        if (page != mPageCount + 1) {
+            return -1;
+        }
+        if (mPageStarts.length < mPageCount + 2) {
+            mPageStarts = Arrays.copyOf(mPageStarts, mPageStarts.length * 2 + 1);
+        }
+        int start = mPageStarts[mPageCount];
+        mPageStarts[mPageCount + 1] = start + items.size();
+        mPageCount++;
+        // Pages are appended as the viewport reaches the end, the next viewport update trims them.
+        mResidentPages.put(page, items);
+        modCount++;
+        return start;
+    }
+
+    // Puts the items of a dropped page back. Returns the position of its first item, or -1
+    // if the page wasn't asked for in this generation or has left the window meanwhile.
+    public int restorePage(int generation, int page, List<GalleryItem> items) {
+        if (generation != mGeneration || !mRequestedPages.remove(page)
+                || page < mFirstWindowPage || page > mLastWindowPage) {
+            return -1;
+        }
+        mResidentPages.put(page, items);
+        return mPageStarts[page - 1];
+    }
+
+    // Number of positions the page takes, which stays the same after it's reloaded.
+    public int getPageSize(int page) {
+        return mPageStarts[page] - mPageStarts[page - 1];
+    }
+
+    // Moves the window to the pages around the visible positions, dropping the pages that
+    // fell out of it and asking for those that came back into it.
+    public void setViewport(int firstVisiblePosition, int lastVisiblePosition) {
+        if (mPageCount == 0 || firstVisiblePosition < 0 || lastVisiblePosition < firstVisiblePosition) {
+            return;
+        }
+        int middlePosition = Math.min((firstVisiblePosition + lastVisiblePosition) / 2, size() - 1);
+        int middlePage = getPageForPosition(middlePosition);
+        int firstWindowPage = Math.max(1, middlePage - WINDOW_PAGES_AROUND);
+        int lastWindowPage = Math.min(mPageCount, middlePage + WINDOW_PAGES_AROUND);
+        if (firstWindowPage == mFirstWindowPage && lastWindowPage == mLastWindowPage) {
+            return;
+        }
+        mFirstWindowPage = firstWindowPage;
+        mLastWindowPage = lastWindowPage;
+        dropPagesOutside(mResidentPages.keySet(), firstWindowPage, lastWindowPage);
+        dropPagesOutside(mRequestedPages, firstWindowPage, lastWindowPage);
+        for (int page = firstWindowPage; page <= lastWindowPage; page++) {
+            if (!mResidentPages.containsKey(page) && mRequestedPages.add(page) && mCallback != null) {
+                mCallback.onPageNeeded(mGeneration, page);
+            }
+        }
+    }
+
+    public int getResidentPageCount() {
+        return mResidentPages.size();
+    }
+
+    private static void dropPagesOutside(Set<Integer> pages, int firstPage, int lastPage) {
+        Iterator<Integer> it = pages.iterator();
+        while (it.hasNext()) {
+            int page = it.next();
+            if (page < firstPage || page > lastPage) {
+                it.remove();
+            }
+        }
+    }
+
+    private int getPageForPosition(int position) {
+        // Last page whose start is not after the position.
+        int low = 0;
+        int high = mPageCount - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (mPageStarts[middle] <= position) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low + 1;
+    }
+
+}
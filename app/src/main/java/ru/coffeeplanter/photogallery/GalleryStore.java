@@ -0,0 +1,266 @@
+package ru.coffeeplanter.photogallery;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import ru.coffeeplanter.photogallery.GalleryDbSchema.PageTable;
+import ru.coffeeplanter.photogallery.GalleryDbSchema.PhotoTable;
+import ru.coffeeplanter.photogallery.GalleryDbSchema.SeenIdsTable;
+
+// Local copy of the fetched gallery pages, per query, so the grid can be shown
+// right away on start and refreshed from the network afterwards. All methods
+// touch the database and must be called off the main thread.
+public class GalleryStore {
+
+    private static final String RECENT_QUERY_KEY = "recent";
+    private static final String SEARCH_QUERY_KEY_PREFIX = "search:";
+    // Queries whose pages were used least recently, fetched or read back, are dropped beyond
+    // either bound. The most recent query is kept whatever its size.
+    private static final int MAX_STORED_QUERIES = 10;
+    private static final int MAX_STORED_ITEMS = 5000;
+    // Same for the seen ids of queries that haven't been polled for a while.
+    private static final int MAX_SEEN_ID_QUERIES = 20;
+
+    private static GalleryStore sGalleryStore;
+
+    private final SQLiteDatabase mDatabase;
+
+    public static synchronized GalleryStore get(Context context) {
+        if (sGalleryStore == null) {
+            sGalleryStore = new GalleryStore(context.getApplicationContext());
+        }
+        return sGalleryStore;
+    }
+
+    private GalleryStore(Context context) {
+        mDatabase = new GalleryBaseHelper(context).getWritableDatabase();
+    }
+
+    // The key pages of a query are stored under; null stands for the recent photos.
+    public static String getQueryKey(String query) {
+        if (query == null || query.trim().isEmpty()) {
+            return RECENT_QUERY_KEY;
+        }
+        return SEARCH_QUERY_KEY_PREFIX + query.trim().toLowerCase(Locale.US);
+    }
+
+    // Stores a fetched page and returns whether it differs from the stored one.
+    // A changed first page means the later pages have shifted, so they are dropped.
+    public boolean putPage(String queryKey, PhotoListPage page) {
+        mDatabase.beginTransaction();
+        try {
+            boolean changed = !sameIds(getItems(queryKey, page.getPage()), page.getItems());
+            if (changed) {
+                if (page.getPage() == 1) {
+                    deleteQuery(queryKey);
+                } else {
+                    deletePage(queryKey, page.getPage());
+                }
+                insertItems(queryKey, page);
+            }
+            ContentValues values = new ContentValues();
+            values.put(PageTable.Cols.QUERY_KEY, queryKey);
+            values.put(PageTable.Cols.PAGE, page.getPage());
+            values.put(PageTable.Cols.PAGES, page.getPages());
+            values.put(PageTable.Cols.PER_PAGE, page.getPerPage());
+            values.put(PageTable.Cols.FETCHED_AT, page.getFetchedAt());
+            values.put(PageTable.Cols.LAST_USED, System.currentTimeMillis());
+            mDatabase.insertWithOnConflict(PageTable.NAME, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+            markUsed(queryKey);
+            trimQueries();
+            mDatabase.setTransactionSuccessful();
+            return changed;
+        } finally {
+            mDatabase.endTransaction();
+        }
+    }
+
+    // Returns the stored page, or null if it was never fetched.
+    public PhotoListPage getPage(String queryKey, int page) {
+        Cursor cursor = mDatabase.query(PageTable.NAME,
+                new String[] {PageTable.Cols.PAGES, PageTable.Cols.PER_PAGE, PageTable.Cols.FETCHED_AT},
+                PageTable.Cols.QUERY_KEY + " = ? and " + PageTable.Cols.PAGE + " = ?",
+                new String[] {queryKey, String.valueOf(page)},
+                null, null, null);
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            return new PhotoListPage(getItems(queryKey, page), cursor.getInt(0), page, cursor.getInt(1),
+                    cursor.getLong(2));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // Moves the query to the end of the eviction order; for pages read back from here.
+    public void markUsed(String queryKey) {
+        ContentValues values = new ContentValues();
+        values.put(PageTable.Cols.LAST_USED, System.currentTimeMillis());
+        mDatabase.update(PageTable.NAME, values, PageTable.Cols.QUERY_KEY + " = ?", new String[] {queryKey});
+    }
+
+    // Returns the stored pages of a query that follow each other from the first one on.
+    public List<PhotoListPage> getLeadingPages(String queryKey, int maxPages) {
+        List<PhotoListPage> pages = new ArrayList<>();
+        for (int page = 1; page <= maxPages; page++) {
+            PhotoListPage photoListPage = getPage(queryKey, page);
+            if (photoListPage == null) {
+                break;
+            }
+            pages.add(photoListPage);
+        }
+        return pages;
+    }
+
+    // Returns an empty set if the query hasn't been polled yet.
+    public SeenPhotoIds getSeenIds(String queryKey) {
+        Cursor cursor = mDatabase.query(SeenIdsTable.NAME, new String[] {SeenIdsTable.Cols.IDS},
+                SeenIdsTable.Cols.QUERY_KEY + " = ?", new String[] {queryKey}, null, null, null);
+        try {
+            byte[] ids = cursor.moveToFirst() ? cursor.getBlob(0) : null;
+            return SeenPhotoIds.fromBytes(ids, SeenPhotoIds.DEFAULT_CAPACITY);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public void putSeenIds(String queryKey, SeenPhotoIds seenIds) {
+        ContentValues values = new ContentValues();
+        values.put(SeenIdsTable.Cols.QUERY_KEY, queryKey);
+        values.put(SeenIdsTable.Cols.IDS, seenIds.toBytes());
+        values.put(SeenIdsTable.Cols.UPDATED_AT, System.currentTimeMillis());
+        mDatabase.beginTransaction();
+        try {
+            mDatabase.insertWithOnConflict(SeenIdsTable.NAME, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+            mDatabase.delete(SeenIdsTable.NAME, SeenIdsTable.Cols.QUERY_KEY + " not in (select "
+                    + SeenIdsTable.Cols.QUERY_KEY + " from " + SeenIdsTable.NAME
+                    + " order by " + SeenIdsTable.Cols.UPDATED_AT + " desc limit " + MAX_SEEN_ID_QUERIES + ")", null);
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+        }
+    }
+
+    private List<GalleryItem> getItems(String queryKey, int page) {
+        List<GalleryItem> items = new ArrayList<>();
+        Cursor cursor = mDatabase.query(PhotoTable.NAME,
+                new String[] {PhotoTable.Cols.PHOTO_ID, PhotoTable.Cols.TITLE,
+                        PhotoTable.Cols.URL, PhotoTable.Cols.OWNER},
+                PhotoTable.Cols.QUERY_KEY + " = ? and " + PhotoTable.Cols.PAGE + " = ?",
+                new String[] {queryKey, String.valueOf(page)},
+                null, null, PhotoTable.Cols.POSITION);
+        try {
+            while (cursor.moveToNext()) {
+                GalleryItem item = new GalleryItem();
+                item.setId(cursor.getString(0));
+                item.setCaption(cursor.getString(1));
+                item.setUrl(cursor.getString(2));
+                item.setOwner(cursor.getString(3));
+                items.add(item);
+            }
+        } finally {
+            cursor.close();
+        }
+        return items;
+    }
+
+    private void insertItems(String queryKey, PhotoListPage page) {
+        SQLiteStatement statement = mDatabase.compileStatement("insert into " + PhotoTable.NAME + "("
+                + PhotoTable.Cols.QUERY_KEY + ", "
+                + PhotoTable.Cols.PAGE + ", "
+                + PhotoTable.Cols.POSITION + ", "
+                + PhotoTable.Cols.PHOTO_ID + ", "
+                + PhotoTable.Cols.TITLE + ", "
+                + PhotoTable.Cols.URL + ", "
+                + PhotoTable.Cols.OWNER + ") values (?, ?, ?, ?, ?, ?, ?)");
+        try {
+            List<GalleryItem> items = page.getItems();
+            for (int i = 0; i < items.size(); i++) {
+                GalleryItem item = items.get(i);
+                statement.clearBindings();
+                statement.bindString(1, queryKey);
+                statement.bindLong(2, page.getPage());
+                statement.bindLong(3, i);
+                bindStringOrNull(statement, 4, item.getId());
+                bindStringOrNull(statement, 5, item.getCaption());
+                bindStringOrNull(statement, 6, item.getUrl());
+                bindStringOrNull(statement, 7, item.getOwner());
+                statement.executeInsert();
+            }
+        } finally {
+            statement.close();
+        }
+    }
+
+    private void deletePage(String queryKey, int page) {
+        String[] args = new String[] {queryKey, String.valueOf(page)};
+        mDatabase.delete(PhotoTable.NAME,
+                PhotoTable.Cols.QUERY_KEY + " = ? and " + PhotoTable.Cols.PAGE + " = ?", args);
+        mDatabase.delete(PageTable.NAME,
+                PageTable.Cols.QUERY_KEY + " = ? and " + PageTable.Cols.PAGE + " = ?", args);
+    }
+
+    private void deleteQuery(String queryKey) {
+        String[] args = new String[] {queryKey};
+        mDatabase.delete(PhotoTable.NAME, PhotoTable.Cols.QUERY_KEY + " = ?", args);
+        mDatabase.delete(PageTable.NAME, PageTable.Cols.QUERY_KEY + " = ?", args);
+    }
+
+    private void trimQueries() {
+        Cursor cursor = mDatabase.rawQuery("select " + PageTable.NAME + "." + PageTable.Cols.QUERY_KEY
+                + ", (select count(*) from " + PhotoTable.NAME + " where " + PhotoTable.NAME + "."
+                + PhotoTable.Cols.QUERY_KEY + " = " + PageTable.NAME + "." + PageTable.Cols.QUERY_KEY + ")"
+                + " from " + PageTable.NAME
+                + " group by " + PageTable.NAME + "." + PageTable.Cols.QUERY_KEY
+                + " order by max(" + PageTable.Cols.LAST_USED + ") desc", null);
+        List<String> staleKeys = new ArrayList<>();
+        try {
+            int queryCount = 0;
+            int itemCount = 0;
+            while (cursor.moveToNext()) {
+                queryCount++;
+                itemCount += cursor.getInt(1);
+                if (queryCount > 1 && (queryCount > MAX_STORED_QUERIES || itemCount > MAX_STORED_ITEMS)) {
+                    staleKeys.add(cursor.getString(0));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        for (String queryKey : staleKeys) {
+            deleteQuery(queryKey);
+        }
+    }
+
+    private static void bindStringOrNull(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+
+    private static boolean sameIds(List<GalleryItem> stored, List<GalleryItem> fetched) {
+        if (stored.size() != fetched.size()) {
+            return false;
+        }
+        for (int i = 0; i < stored.size(); i++) {
+            GalleryItem storedItem = stored.get(i);
+            GalleryItem fetchedItem = fetched.get(i);
+            boolean bothWithoutId = storedItem.getId() == null && fetchedItem.getId() == null;
+            if (!bothWithoutId && !storedItem.hasSameId(fetchedItem)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
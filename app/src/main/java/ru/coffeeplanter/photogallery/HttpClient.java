@@ -0,0 +1,456 @@
+package ru.coffeeplanter.photogallery;
+
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+// One place for all HTTP traffic of the app. HttpURLConnection keeps idle connections
+// alive and reuses them, but only for responses that were read to the end and closed
+// (not disconnected), so everything goes through Response.close(). The client also
+// bounds how many requests run at once, overall and per host.
+public class HttpClient {
+
+    private static final String TAG = "HttpClient";
+    // Under the app cache directory.
+    public static final String CONDITIONAL_CACHE_DIRECTORY = "http";
+
+    private static final int DEFAULT_CONNECT_TIMEOUT_MS = 15000;
+    private static final int DEFAULT_READ_TIMEOUT_MS = 20000;
+    private static final int DEFAULT_MAX_CONNECTIONS = 8;
+    // Matches the idle connections HttpURLConnection keeps per host (http.maxConnections).
+    private static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 5;
+    private static final int DRAIN_BUFFER_SIZE = 8 * 1024;
+    private static final long CONDITIONAL_CACHE_SIZE = 4 * 1024 * 1024;
+
+    private static HttpClient sInstance;
+
+    private final int mConnectTimeoutMs;
+    private final int mReadTimeoutMs;
+    private final int mMaxConnectionsPerHost;
+    private final Semaphore mConnectionPermits;
+    private final Map<String, Semaphore> mHostPermits = new HashMap<>();
+    private volatile File mConditionalCacheDirectory;
+    private final Object mConditionalCacheLock = new Object();
+    private boolean mConditionalCacheOpened = false;
+    private volatile ConditionalRequestCache mConditionalCache;
+    private final AtomicInteger mConditionalRequestCount = new AtomicInteger();
+    private final AtomicInteger mNotModifiedCount = new AtomicInteger();
+    private final AtomicLong mBytesSaved = new AtomicLong();
+    private final AtomicLong mBytesReceived = new AtomicLong();
+
+    public static synchronized HttpClient getInstance() {
+        if (sInstance == null) {
+            sInstance = new HttpClient(DEFAULT_CONNECT_TIMEOUT_MS, DEFAULT_READ_TIMEOUT_MS,
+                    DEFAULT_MAX_CONNECTIONS, DEFAULT_MAX_CONNECTIONS_PER_HOST);
+        }
+        return sInstance;
+    }
+
+    // Replaces the shared client, e.g. to change timeouts. Requests already running are not affected.
+    public static synchronized void setInstance(HttpClient client) {
+        sInstance = client;
+    }
+
+    public HttpClient(int connectTimeoutMs, int readTimeoutMs, int maxConnections, int maxConnectionsPerHost) {
+        mConnectTimeoutMs = connectTimeoutMs;
+        mReadTimeoutMs = readTimeoutMs;
+        mMaxConnectionsPerHost = maxConnectionsPerHost;
+        mConnectionPermits = new Semaphore(maxConnections, true);
+    }
+
+    // Blocks while the connection limits are reached. The caller must close the response.
+    public Response open(String url) throws IOException {
+        return open(url, null);
+    }
+
+    // extraHeaders may be null.
+    public Response open(String url, Map<String, String> extraHeaders) throws IOException {
+        URL target = new URL(url);
+        Semaphore hostPermits = getHostPermits(target.getHost());
+        try {
+            mConnectionPermits.acquire();
+        } catch (InterruptedException ie) {
+            throw new InterruptedIOException("Interrupted waiting for a connection to " + url);
+        }
+        try {
+            hostPermits.acquire();
+        } catch (InterruptedException ie) {
+            mConnectionPermits.release();
+            throw new InterruptedIOException("Interrupted waiting for a connection to " + url);
+        }
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) target.openConnection();
+            connection.setConnectTimeout(mConnectTimeoutMs);
+            connection.setReadTimeout(mReadTimeoutMs);
+            // Asking for gzip explicitly turns off the transparent decompression, which hides the
+            // real Content-Length, so Response unzips it itself.
+            connection.setRequestProperty("Accept-Encoding", "gzip");
+            if (extraHeaders != null) {
+                for (Map.Entry<String, String> header : extraHeaders.entrySet()) {
+                    connection.setRequestProperty(header.getKey(), header.getValue());
+                }
+            }
+            int responseCode = connection.getResponseCode();
+            return new Response(connection, responseCode, hostPermits);
+        } catch (IOException | RuntimeException e) {
+            if (connection != null) {
+                connection.disconnect();
+            }
+            hostPermits.release();
+            mConnectionPermits.release();
+            throw e;
+        }
+    }
+
+    // Keeps validated responses in the directory from now on, so get() can revalidate instead
+    // of downloading again. The cache is opened by the first request that needs it, off the
+    // caller's thread, so this is fine on the main thread. Once the cache is open, later
+    // directories are ignored.
+    public void setConditionalCacheDirectory(File directory) {
+        mConditionalCacheDirectory = directory;
+    }
+
+    private ConditionalRequestCache getConditionalCache() {
+        File directory = mConditionalCacheDirectory;
+        if (directory == null) {
+            return null;
+        }
+        synchronized (mConditionalCacheLock) {
+            if (!mConditionalCacheOpened) {
+                mConditionalCacheOpened = true;
+                try {
+                    mConditionalCache = ConditionalRequestCache.open(directory, CONDITIONAL_CACHE_SIZE);
+                } catch (IOException ioe) {
+                    Log.e(TAG, "Unable to open conditional request cache in " + directory, ioe);
+                }
+            }
+            return mConditionalCache;
+        }
+    }
+
+    public byte[] getBytes(String url) throws IOException {
+        return get(url, new BodyParser<byte[]>() {
+            @Override
+            public byte[] parse(InputStream in) throws IOException {
+                return readFully(in, DRAIN_BUFFER_SIZE);
+            }
+        }, null);
+    }
+
+    public String getString(String url) throws IOException {
+        return new String(getBytes(url), "UTF-8");
+    }
+
+    // Parses the body as it arrives. With a conditional cache set, a URL fetched before is
+    // requested with its ETag and Last-Modified validators and a 304 answer is parsed from
+    // the cache, while a new body is stored there as it's being read. Adds the body bytes
+    // actually downloaded, 0 for a 304, to bytesReceived if it isn't null.
+    public <T> T get(String url, BodyParser<T> parser, AtomicLong bytesReceived) throws IOException {
+        ConditionalRequestCache cache = getConditionalCache();
+        ConditionalRequestCache.Entry cached = cache != null ? cache.get(url) : null;
+        try {
+            if (cached != null) {
+                mConditionalRequestCount.incrementAndGet();
+            }
+            Response response = open(url, cached != null ? cached.getValidatorHeaders() : null);
+            try {
+                if (cached != null && response.getCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                    mNotModifiedCount.incrementAndGet();
+                    mBytesSaved.addAndGet(cached.getBodyLength());
+                    try {
+                        return parser.parse(cached.getBody());
+                    } catch (IOException ioe) {
+                        // The next request goes out unconditional and replaces what's stored.
+                        cache.remove(url);
+                        throw ioe;
+                    }
+                }
+                if (response.getCode() != HttpURLConnection.HTTP_OK) {
+                    throw new IOException(response.getMessage() + ": with " + url);
+                }
+                DiskCache.Editor editor = null;
+                if (cache != null) {
+                    try {
+                        editor = cache.edit(url, response.getHeader("ETag"), response.getHeader("Last-Modified"));
+                    } catch (IOException ioe) {
+                        Log.e(TAG, "Unable to cache response of " + url, ioe);
+                    }
+                }
+                TeeInputStream in = new TeeInputStream(response.getInputStream(), editor);
+                try {
+                    T result = parser.parse(in);
+                    // The rest, if any, is needed for the cache and for reusing the connection.
+                    in.drain();
+                    in.commit();
+                    return result;
+                } finally {
+                    in.abort();
+                    mBytesReceived.addAndGet(in.getByteCount());
+                    if (bytesReceived != null) {
+                        bytesReceived.addAndGet(in.getByteCount());
+                    }
+                }
+            } finally {
+                response.close();
+            }
+        } finally {
+            if (cached != null) {
+                cached.close();
+            }
+        }
+    }
+
+    public int getConditionalRequestCount() {
+        return mConditionalRequestCount.get();
+    }
+
+    public int getNotModifiedCount() {
+        return mNotModifiedCount.get();
+    }
+
+    // Body bytes that 304 answers spared us, counted as the uncompressed cached bodies.
+    public long getBytesSaved() {
+        return mBytesSaved.get();
+    }
+
+    // Body bytes get() actually downloaded, uncompressed.
+    public long getBytesReceived() {
+        return mBytesReceived.get();
+    }
+
+    public String getStats() {
+        return String.format("HttpClient[conditional=%d, notModified=%d, bytesSaved=%d, bytesReceived=%d, cache=%s]",
+                mConditionalRequestCount.get(), mNotModifiedCount.get(), mBytesSaved.get(), mBytesReceived.get(),
+                mConditionalCache);
+    }
+
+    private static byte[] readFully(InputStream in, int sizeHint) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(sizeHint);
+        byte[] buffer = new byte[DRAIN_BUFFER_SIZE];
+        int bytesRead;
+        while ((bytesRead = in.read(buffer)) > 0) {
+            out.write(buffer, 0, bytesRead);
+        }
+        return out.toByteArray();
+    }
+
+    private synchronized Semaphore getHostPermits(String host) {
+        Semaphore permits = mHostPermits.get(host);
+        if (permits == null) {
+            permits = new Semaphore(mMaxConnectionsPerHost, true);
+            mHostPermits.put(host, permits);
+        }
+        return permits;
+    }
+
+    // Reads a response body as it arrives. The client closes the stream.
+    public interface BodyParser<T> {
+        T parse(InputStream in) throws IOException;
+    }
+
+    // Counts what the parser reads and copies it into a cache editor, if there is one. A
+    // failed write only costs the cache entry. Closing it leaves the response open.
+    private static class TeeInputStream extends FilterInputStream {
+
+        private DiskCache.Editor mEditor;
+        private OutputStream mOutputStream;
+        private long mByteCount = 0;
+
+        TeeInputStream(InputStream in, DiskCache.Editor editor) {
+            super(in);
+            mEditor = editor;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                mByteCount++;
+                if (mEditor != null) {
+                    try {
+                        getOutputStream().write(b);
+                    } catch (IOException ioe) {
+                        abort();
+                    }
+                }
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int bytesRead = super.read(buffer, offset, count);
+            if (bytesRead > 0) {
+                mByteCount += bytesRead;
+                if (mEditor != null) {
+                    try {
+                        getOutputStream().write(buffer, offset, bytesRead);
+                    } catch (IOException ioe) {
+                        abort();
+                    }
+                }
+            }
+            return bytesRead;
+        }
+
+        @Override
+        public long skip(long byteCount) throws IOException {
+            byte[] buffer = new byte[(int) Math.min(byteCount, DRAIN_BUFFER_SIZE)];
+            int bytesRead = read(buffer, 0, buffer.length);
+            return bytesRead > 0 ? bytesRead : 0;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        long getByteCount() {
+            return mByteCount;
+        }
+
+        void drain() throws IOException {
+            byte[] buffer = new byte[DRAIN_BUFFER_SIZE];
+            while (read(buffer, 0, buffer.length) > 0) {
+                // Keep reading.
+            }
+        }
+
+        void commit() {
+            if (mEditor == null) {
+                return;
+            }
+            try {
+                mEditor.commit();
+            } catch (IOException ioe) {
+                Log.e(TAG, "Unable to cache response", ioe);
+            }
+            mEditor = null;
+        }
+
+        void abort() {
+            if (mEditor != null) {
+                mEditor.abort();
+                mEditor = null;
+            }
+        }
+
+        private OutputStream getOutputStream() throws IOException {
+            if (mOutputStream == null) {
+                mOutputStream = mEditor.getOutputStream();
+            }
+            return mOutputStream;
+        }
+    }
+
+    public class Response {
+
+        private final HttpURLConnection mConnection;
+        private final int mCode;
+        private final Semaphore mHostPermits;
+        private InputStream mBodyStream;
+        private InputStream mInputStream;
+        private boolean mClosed = false;
+
+        private Response(HttpURLConnection connection, int code, Semaphore hostPermits) {
+            mConnection = connection;
+            mCode = code;
+            mHostPermits = hostPermits;
+        }
+
+        public int getCode() {
+            return mCode;
+        }
+
+        public String getMessage() throws IOException {
+            return mConnection.getResponseMessage();
+        }
+
+        public String getHeader(String name) {
+            return mConnection.getHeaderField(name);
+        }
+
+        // Length of the body as sent, compressed or not; -1 if unknown.
+        public int getContentLength() {
+            return mConnection.getContentLength();
+        }
+
+        public synchronized InputStream getInputStream() throws IOException {
+            if (mInputStream == null) {
+                InputStream in = mCode >= HttpURLConnection.HTTP_BAD_REQUEST
+                        ? mConnection.getErrorStream() : mConnection.getInputStream();
+                if (in == null) {
+                    in = new ByteArrayInputStream(new byte[0]);
+                }
+                if ("gzip".equalsIgnoreCase(mConnection.getContentEncoding())) {
+                    in = new GZIPInputStream(in);
+                }
+                mBodyStream = in;
+                mInputStream = new FilterInputStream(in) {
+                    @Override
+                    public void close() throws IOException {
+                        Response.this.close();
+                    }
+                };
+            }
+            return mInputStream;
+        }
+
+        public byte[] readBytes() throws IOException {
+            int contentLength = getContentLength();
+            return readFully(getInputStream(), contentLength > 0 ? contentLength : DRAIN_BUFFER_SIZE);
+        }
+
+        // Aborts the exchange from any thread; a read blocked on it fails with an IOException.
+        public void cancel() {
+            mConnection.disconnect();
+        }
+
+        // Returns the connection to the keep-alive pool if the body was read to the end.
+        public void close() {
+            synchronized (this) {
+                if (mClosed) {
+                    return;
+                }
+                mClosed = true;
+            }
+            try {
+                if (mBodyStream != null) {
+                    mBodyStream.close();
+                } else {
+                    InputStream in = mCode >= HttpURLConnection.HTTP_BAD_REQUEST
+                            ? mConnection.getErrorStream() : mConnection.getInputStream();
+                    if (in != null) {
+                        in.close();
+                    }
+                }
+            } catch (IOException ignored) {
+                // Nothing to reuse then.
+            } finally {
+                mHostPermits.release();
+                mConnectionPermits.release();
+            }
+        }
+    }
+
+}
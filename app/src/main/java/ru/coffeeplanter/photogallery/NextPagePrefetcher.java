@@ -0,0 +1,105 @@
+package ru.coffeeplanter.photogallery;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+
+// Decides which of the next gallery pages to load while the user scrolls, so that
+// loaded content always reaches a given distance past the viewport. Several pages
+// may load at once and finish in any order; they are handed back in page order.
+// Main thread only.
+public class NextPagePrefetcher {
+
+    private int mPrefetchDistance;
+    private int mMaxConcurrentLoads;
+    private final Set<Integer> mLoadingPages = new HashSet<>();
+    // Pages that finished before a page in front of them.
+    private final TreeMap<Integer, PhotoListPage> mFinishedPages = new TreeMap<>();
+    private int mHighestRequestedPage = 0;
+
+    // prefetchDistance is in items past the last visible one.
+    public NextPagePrefetcher(int prefetchDistance, int maxConcurrentLoads) {
+        mPrefetchDistance = prefetchDistance;
+        mMaxConcurrentLoads = maxConcurrentLoads;
+    }
+
+    public void setPrefetchDistance(int prefetchDistance) {
+        mPrefetchDistance = prefetchDistance;
+    }
+
+    public void setMaxConcurrentLoads(int maxConcurrentLoads) {
+        mMaxConcurrentLoads = maxConcurrentLoads;
+    }
+
+    // Returns the pages to start loading now, lowest first. Pages already loading are not
+    // returned again.
+    public List<Integer> getPagesToLoad(int lastVisiblePosition, int itemCount, int loadedPageCount,
+                                        int totalPages, int itemsPerPage) {
+        List<Integer> pages = new ArrayList<>();
+        if (loadedPageCount == 0 || itemsPerPage <= 0) {
+            return pages;
+        }
+        int itemsNeeded = lastVisiblePosition + 1 + mPrefetchDistance;
+        int itemsMissing = itemsNeeded - itemCount;
+        if (itemsMissing <= 0) {
+            return pages;
+        }
+        int lastPageNeeded = Math.min(totalPages,
+                loadedPageCount + (itemsMissing + itemsPerPage - 1) / itemsPerPage);
+        int page = Math.max(mHighestRequestedPage, loadedPageCount) + 1;
+        // Pages that failed earlier come first again.
+        for (int failedPage = loadedPageCount + 1; failedPage < page; failedPage++) {
+            if (mLoadingPages.size() + pages.size() >= mMaxConcurrentLoads) {
+                return pages;
+            }
+            if (!mLoadingPages.contains(failedPage) && !mFinishedPages.containsKey(failedPage)) {
+                pages.add(failedPage);
+            }
+        }
+        while (page <= lastPageNeeded && mLoadingPages.size() + pages.size() < mMaxConcurrentLoads) {
+            pages.add(page);
+            page++;
+        }
+        mLoadingPages.addAll(pages);
+        for (int requestedPage : pages) {
+            mHighestRequestedPage = Math.max(mHighestRequestedPage, requestedPage);
+        }
+        return pages;
+    }
+
+    // Returns the pages that can be appended now, in order, the loaded one among them if
+    // nothing in front of it is still missing.
+    public List<PhotoListPage> onPageLoaded(PhotoListPage page, int loadedPageCount) {
+        mLoadingPages.remove(page.getPage());
+        if (page.getPage() > loadedPageCount) {
+            mFinishedPages.put(page.getPage(), page);
+        }
+        List<PhotoListPage> readyPages = new ArrayList<>();
+        int nextPage = loadedPageCount + 1;
+        while (mFinishedPages.containsKey(nextPage)) {
+            readyPages.add(mFinishedPages.remove(nextPage));
+            nextPage++;
+        }
+        return readyPages;
+    }
+
+    // The page is asked for again by the next getPagesToLoad().
+    public void onPageFailed(int page) {
+        mLoadingPages.remove(page);
+    }
+
+    public boolean isLoading() {
+        return !mLoadingPages.isEmpty();
+    }
+
+    // Forgets about every page, e.g. when the query changes. Loads still running must be
+    // cancelled or ignored by the caller.
+    public void reset() {
+        mLoadingPages.clear();
+        mFinishedPages.clear();
+        mHighestRequestedPage = 0;
+    }
+
+}
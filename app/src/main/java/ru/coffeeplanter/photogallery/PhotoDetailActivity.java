@@ -0,0 +1,25 @@
+package ru.coffeeplanter.photogallery;
+
+import android.content.Context;
+import android.content.Intent;
+import android.support.v4.app.Fragment;
+
+public class PhotoDetailActivity extends SingleFragmentActivity {
+
+    public static Intent newIntent(Context context, GalleryItem item) {
+        Intent i = new Intent(context, PhotoDetailActivity.class);
+        i.putExtras(PhotoDetailFragment.toBundle(item));
+        return i;
+    }
+
+    @Override
+    protected Fragment createFragment() {
+        GalleryItem item = PhotoDetailFragment.fromBundle(getIntent().getExtras());
+        // Only Flickr's own photo URLs can be asked for in a larger size.
+        if (item.getSizedUrl('z') == null) {
+            return PhotoPageFragment.newInstance(item.getPhotoPageUri());
+        }
+        return PhotoDetailFragment.newInstance(item);
+    }
+
+}
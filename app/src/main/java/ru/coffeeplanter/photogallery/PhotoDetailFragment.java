@@ -0,0 +1,144 @@
+package ru.coffeeplanter.photogallery;
+
+import android.content.Intent;
+import android.graphics.Bitmap;
+import android.graphics.BitmapRegionDecoder;
+import android.os.Bundle;
+import android.os.Handler;
+import android.support.annotation.Nullable;
+import android.support.v7.app.AppCompatActivity;
+import android.view.LayoutInflater;
+import android.view.Menu;
+import android.view.MenuInflater;
+import android.view.MenuItem;
+import android.view.View;
+import android.view.ViewGroup;
+import android.view.ViewTreeObserver;
+import android.widget.ProgressBar;
+
+// The photo itself, zoomable, starting with the thumbnail the grid already has. Falls back
+// to the photo's Flickr page when nothing could be loaded.
+public class PhotoDetailFragment extends VisibleFragment {
+
+    private static final String ARG_ID = "photo_id";
+    private static final String ARG_URL = "photo_url";
+    private static final String ARG_OWNER = "photo_owner";
+    private static final String ARG_CAPTION = "photo_caption";
+
+    private GalleryItem mGalleryItem;
+    private PhotoDetailView mPhotoDetailView;
+    private ProgressBar mProgressBar;
+    private PhotoDetailLoader mLoader;
+
+    public static PhotoDetailFragment newInstance(GalleryItem item) {
+        PhotoDetailFragment fragment = new PhotoDetailFragment();
+        fragment.setArguments(toBundle(item));
+        return fragment;
+    }
+
+    static Bundle toBundle(GalleryItem item) {
+        Bundle args = new Bundle();
+        args.putString(ARG_ID, item.getId());
+        args.putString(ARG_URL, item.getUrl());
+        args.putString(ARG_OWNER, item.getOwner());
+        args.putString(ARG_CAPTION, item.getCaption());
+        return args;
+    }
+
+    static GalleryItem fromBundle(Bundle args) {
+        GalleryItem item = new GalleryItem(args.getString(ARG_CAPTION), args.getString(ARG_ID),
+                args.getString(ARG_URL));
+        item.setOwner(args.getString(ARG_OWNER));
+        return item;
+    }
+
+    @Override
+    public void onCreate(@Nullable Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setHasOptionsMenu(true);
+        mGalleryItem = fromBundle(getArguments());
+    }
+
+    @Nullable
+    @Override
+    public View onCreateView(LayoutInflater inflater, @Nullable ViewGroup container, @Nullable Bundle savedInstanceState) {
+
+        View v = inflater.inflate(R.layout.fragment_photo_detail, container, false);
+
+        mProgressBar = (ProgressBar) v.findViewById(R.id.progress_bar);
+        mPhotoDetailView = (PhotoDetailView) v.findViewById(R.id.photo_detail_view);
+        // What to decode depends on the view's size, so loading waits for the layout.
+        mPhotoDetailView.getViewTreeObserver().addOnGlobalLayoutListener(new ViewTreeObserver.OnGlobalLayoutListener() {
+            @Override
+            public void onGlobalLayout() {
+                mPhotoDetailView.getViewTreeObserver().removeOnGlobalLayoutListener(this);
+                loadPhoto(mPhotoDetailView.getWidth(), mPhotoDetailView.getHeight());
+            }
+        });
+
+        AppCompatActivity activity = (AppCompatActivity) getActivity();
+        activity.getSupportActionBar().setSubtitle(mGalleryItem.getCaption());
+
+        return v;
+
+    }
+
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        if (mLoader != null) {
+            mLoader.cancel();
+            mLoader = null;
+        }
+        mPhotoDetailView.release();
+    }
+
+    @Override
+    public void onCreateOptionsMenu(Menu menu, MenuInflater inflater) {
+        super.onCreateOptionsMenu(menu, inflater);
+        inflater.inflate(R.menu.fragment_photo_detail, menu);
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        switch (item.getItemId()) {
+            case R.id.menu_item_open_in_browser:
+                openPhotoPage();
+                return true;
+            default:
+                return super.onOptionsItemSelected(item);
+        }
+    }
+
+    private void loadPhoto(int width, int height) {
+        mLoader = new PhotoDetailLoader(getActivity(), new Handler());
+        mLoader.load(mGalleryItem, width, height, new PhotoDetailLoader.Listener() {
+            @Override
+            public void onImageLoaded(Bitmap bitmap, int imageWidth, int imageHeight) {
+                mPhotoDetailView.setImage(bitmap, imageWidth, imageHeight);
+            }
+
+            @Override
+            public void onRegionDecoderReady(BitmapRegionDecoder decoder, Bitmap preview,
+                                             int imageWidth, int imageHeight) {
+                mPhotoDetailView.setImage(preview, imageWidth, imageHeight);
+                mPhotoDetailView.setRegionDecoder(decoder);
+            }
+
+            @Override
+            public void onFinished(boolean loaded) {
+                mProgressBar.setVisibility(View.GONE);
+                if (!loaded) {
+                    openPhotoPage();
+                    getActivity().finish();
+                }
+            }
+        });
+    }
+
+    private void openPhotoPage() {
+        Intent i = PhotoPageActivity.newIntent(getActivity(), mGalleryItem.getPhotoPageUri());
+        startActivity(i);
+    }
+
+}
@@ -0,0 +1,253 @@
+package ru.coffeeplanter.photogallery;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.os.Handler;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+// Loads a photo for the detail view a step at a time, each better than the last: the grid
+// thumbnail if it's on disk, then the larger Flickr sizes, and last the largest size the
+// photo has, downloaded into their own disk cache. A size too big to decode whole comes back
+// as a region decoder together with a downsampled preview. Results are posted to the
+// listener on the handler's thread.
+public class PhotoDetailLoader {
+
+    private static final String TAG = "PhotoDetailLoader";
+    public static final String DISK_CACHE_DIRECTORY = "photos";
+    // Room for a few originals.
+    private static final long DISK_CACHE_SIZE = 64 * 1024 * 1024;
+    // Sizes that share the thumbnail's secret, smallest first: 640 and 1024 pixels.
+    private static final char[] SIZES = {'z', 'b'};
+    private static final int LARGEST_SHARED_SECRET_SIZE = 1024;
+    // An image with more pixels than this many screenfuls is decoded region by region.
+    private static final int MAX_FULL_DECODE_SCREENS = 2;
+
+    public interface Listener {
+        // imageWidth and imageHeight are the size of the image the bitmap was decoded from.
+        void onImageLoaded(Bitmap bitmap, int imageWidth, int imageHeight);
+
+        void onRegionDecoderReady(BitmapRegionDecoder decoder, Bitmap preview, int imageWidth, int imageHeight);
+
+        // Nothing more is coming; loaded is false if nothing at all could be shown.
+        void onFinished(boolean loaded);
+    }
+
+    private final Handler mResponseHandler;
+    private final File mThumbnailDirectory;
+    private final File mPhotoDirectory;
+    private final DiskPrefetcher mPrefetcher;
+    private final ExecutorService mExecutor;
+    // Only touched on the handler's thread.
+    private boolean mCancelled = false;
+
+    public PhotoDetailLoader(Context context, Handler responseHandler) {
+        mResponseHandler = responseHandler;
+        mThumbnailDirectory = new File(context.getCacheDir(), ThumbnailDownloader.DISK_CACHE_DIRECTORY);
+        mPhotoDirectory = new File(context.getCacheDir(), DISK_CACHE_DIRECTORY);
+        mPrefetcher = new DiskPrefetcher(mPhotoDirectory, DISK_CACHE_SIZE);
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, TAG);
+            }
+        });
+    }
+
+    public void load(final GalleryItem item, final int viewWidth, final int viewHeight, final Listener listener) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean loaded = loadInBackground(item, viewWidth, viewHeight, listener);
+                postFinished(listener, loaded);
+            }
+        });
+    }
+
+    // Call on the handler's thread; nothing is delivered after this.
+    public void cancel() {
+        mCancelled = true;
+        mExecutor.shutdownNow();
+    }
+
+    private boolean loadInBackground(GalleryItem item, int viewWidth, int viewHeight, Listener listener) {
+        boolean loaded = false;
+        Bitmap thumbnail = decodeCached(mThumbnailDirectory, ThumbnailDownloader.DISK_CACHE_SIZE,
+                item.getUrl(), 0, 0);
+        if (thumbnail != null) {
+            postImage(listener, thumbnail, thumbnail.getWidth(), thumbnail.getHeight());
+            loaded = true;
+        }
+        long maxFullDecodePixels = (long) viewWidth * viewHeight * MAX_FULL_DECODE_SCREENS;
+        for (int i = 0; i < SIZES.length && !Thread.currentThread().isInterrupted(); i++) {
+            String url = item.getSizedUrl(SIZES[i]);
+            if (url == null) {
+                return loaded;
+            }
+            if (loadSize(url, viewWidth, viewHeight, maxFullDecodePixels, listener)) {
+                loaded = true;
+            }
+        }
+        if (Thread.currentThread().isInterrupted()) {
+            return loaded;
+        }
+        // The sizes past 1024 pixels, e.g. an original, are the ones big enough to be decoded
+        // region by region.
+        PhotoSize largest = PhotoSize.fetchLargest(item.getId());
+        if (largest != null && Math.max(largest.getWidth(), largest.getHeight()) > LARGEST_SHARED_SECRET_SIZE
+                && !Thread.currentThread().isInterrupted()) {
+            if (loadSize(largest.getSource(), viewWidth, viewHeight, maxFullDecodePixels, listener)) {
+                loaded = true;
+            }
+        }
+        return loaded;
+    }
+
+    // Whatever was shown before stays if this fails.
+    private boolean loadSize(String url, int viewWidth, int viewHeight, long maxFullDecodePixels,
+                             Listener listener) {
+        mPrefetcher.prefetchUrls(Collections.singletonList(url));
+        try {
+            return decodeSize(url, viewWidth, viewHeight, maxFullDecodePixels, listener);
+        } catch (IOException | OutOfMemoryError e) {
+            Log.e(TAG, "Error loading " + url, e);
+            return false;
+        }
+    }
+
+    private boolean decodeSize(String url, int viewWidth, int viewHeight, long maxFullDecodePixels,
+                               Listener listener) throws IOException {
+        DiskCache diskCache = DiskCache.acquire(mPhotoDirectory, DISK_CACHE_SIZE);
+        try {
+            BitmapFactory.Options bounds = new BitmapFactory.Options();
+            bounds.inJustDecodeBounds = true;
+            InputStream in = diskCache.openStream(url);
+            if (in == null) {
+                return false;
+            }
+            try {
+                BitmapFactory.decodeStream(in, null, bounds);
+            } finally {
+                in.close();
+            }
+            int width = bounds.outWidth;
+            int height = bounds.outHeight;
+            if (width <= 0 || height <= 0) {
+                // Cut short, e.g. by a power loss; downloaded again next time.
+                diskCache.remove(url);
+                return false;
+            }
+            if ((long) width * height <= maxFullDecodePixels) {
+                Bitmap bitmap = decodeCached(diskCache, url, 0, 0);
+                if (bitmap == null) {
+                    return false;
+                }
+                postImage(listener, bitmap, width, height);
+                return true;
+            }
+            Bitmap preview = decodeCached(diskCache, url, viewWidth, viewHeight);
+            in = diskCache.openStream(url);
+            if (preview == null || in == null) {
+                return false;
+            }
+            BitmapRegionDecoder decoder;
+            try {
+                decoder = BitmapRegionDecoder.newInstance(in, false);
+            } finally {
+                in.close();
+            }
+            postRegionDecoder(listener, decoder, preview, width, height);
+            return true;
+        } finally {
+            DiskCache.release(diskCache);
+        }
+    }
+
+    private Bitmap decodeCached(File directory, long maxSize, String url, int reqWidth, int reqHeight) {
+        if (url == null) {
+            return null;
+        }
+        try {
+            DiskCache diskCache = DiskCache.acquire(directory, maxSize);
+            try {
+                return decodeCached(diskCache, url, reqWidth, reqHeight);
+            } finally {
+                DiskCache.release(diskCache);
+            }
+        } catch (IOException ioe) {
+            Log.e(TAG, "Error reading " + url, ioe);
+            return null;
+        }
+    }
+
+    private static Bitmap decodeCached(final DiskCache diskCache, final String url,
+                                       int reqWidth, int reqHeight) throws IOException {
+        if (!diskCache.contains(url)) {
+            return null;
+        }
+        return ThumbnailDecoder.decode(new ThumbnailDecoder.StreamSource() {
+            @Override
+            public InputStream open() throws IOException {
+                InputStream in = diskCache.openStream(url);
+                if (in == null) {
+                    throw new IOException("Evicted while decoding: " + url);
+                }
+                return in;
+            }
+        }, reqWidth, reqHeight, true, null, null);
+    }
+
+    private void postImage(final Listener listener, final Bitmap bitmap, final int imageWidth,
+                           final int imageHeight) {
+        mResponseHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!mCancelled) {
+                    listener.onImageLoaded(bitmap, imageWidth, imageHeight);
+                }
+            }
+        });
+    }
+
+    private void postRegionDecoder(final Listener listener, final BitmapRegionDecoder decoder,
+                                   final Bitmap preview, final int imageWidth, final int imageHeight) {
+        mResponseHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mCancelled) {
+                    decoder.recycle();
+                    return;
+                }
+                listener.onRegionDecoderReady(decoder, preview, imageWidth, imageHeight);
+            }
+        });
+    }
+
+    private void postFinished(final Listener listener, final boolean loaded) {
+        mResponseHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!mCancelled) {
+                    listener.onFinished(loaded);
+                }
+            }
+        });
+    }
+
+}
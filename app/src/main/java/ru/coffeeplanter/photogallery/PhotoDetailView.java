@@ -0,0 +1,375 @@
+package ru.coffeeplanter.photogallery;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.Process;
+import android.support.v4.util.LruCache;
+import android.util.AttributeSet;
+import android.util.Log;
+import android.view.GestureDetector;
+import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
+import android.view.View;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+// Shows a photo fitted to the view, with pinch and double-tap zoom and panning. The whole
+// image is drawn from a single bitmap, possibly smaller than the image itself. With a region
+// decoder set, zooming in past that bitmap's resolution decodes just the visible tiles at
+// the resolution the screen needs; tiles that scroll away before being decoded are dropped.
+public class PhotoDetailView extends View {
+
+    private static final String TAG = "PhotoDetailView";
+    // Zooming stops at this many screen pixels per image pixel, or at twice the fitted size.
+    private static final float MAX_PIXEL_ZOOM = 3f;
+    private static final float DOUBLE_TAP_ZOOM = 2.5f;
+    private static final int TILE_SIZE = 512;
+    private static final int TILE_THREAD_COUNT = 2;
+    private static final int TILE_CACHE_SIZE = 16 * 1024 * 1024;
+
+    private Bitmap mBitmap;
+    private int mImageWidth;
+    private int mImageHeight;
+    // From image pixels to view pixels.
+    private final Matrix mMatrix = new Matrix();
+    private final Matrix mInverse = new Matrix();
+    private float mMinScale;
+    private float mMaxScale;
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final RectF mImageRect = new RectF();
+    private final RectF mVisibleRect = new RectF();
+    private final float[] mValues = new float[9];
+    private final ScaleGestureDetector mScaleDetector;
+    private final GestureDetector mGestureDetector;
+
+    private BitmapRegionDecoder mRegionDecoder;
+    private ThreadPoolExecutor mTileExecutor;
+    private final LruCache<String, Bitmap> mTiles = new LruCache<String, Bitmap>(TILE_CACHE_SIZE) {
+        @Override
+        protected int sizeOf(String key, Bitmap tile) {
+            return tile.getByteCount();
+        }
+    };
+    // Tiles queued or being decoded.
+    private final Set<String> mLoadingTiles = new HashSet<>();
+    private final Set<String> mVisibleTiles = new HashSet<>();
+
+    public PhotoDetailView(Context context) {
+        this(context, null);
+    }
+
+    public PhotoDetailView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        mScaleDetector = new ScaleGestureDetector(context, new ScaleGestureDetector.SimpleOnScaleGestureListener() {
+            @Override
+            public boolean onScale(ScaleGestureDetector detector) {
+                zoomBy(detector.getScaleFactor(), detector.getFocusX(), detector.getFocusY());
+                return true;
+            }
+        });
+        mGestureDetector = new GestureDetector(context, new GestureDetector.SimpleOnGestureListener() {
+            @Override
+            public boolean onDown(MotionEvent e) {
+                return true;
+            }
+
+            @Override
+            public boolean onScroll(MotionEvent e1, MotionEvent e2, float distanceX, float distanceY) {
+                mMatrix.postTranslate(-distanceX, -distanceY);
+                constrain();
+                invalidate();
+                return true;
+            }
+
+            @Override
+            public boolean onDoubleTap(MotionEvent e) {
+                if (getScale() > mMinScale * 1.05f) {
+                    fitToView();
+                    invalidate();
+                } else {
+                    zoomBy(DOUBLE_TAP_ZOOM, e.getX(), e.getY());
+                }
+                return true;
+            }
+        });
+    }
+
+    // The bitmap may be smaller than the image, it's stretched to the image's size. Replacing
+    // the image with a larger version of itself keeps the part of it that's on screen.
+    public void setImage(Bitmap bitmap, int imageWidth, int imageHeight) {
+        boolean wasShown = mBitmap != null;
+        if (wasShown && imageWidth != mImageWidth) {
+            float ratio = (float) mImageWidth / imageWidth;
+            mMatrix.preScale(ratio, ratio);
+        }
+        mBitmap = bitmap;
+        mImageWidth = imageWidth;
+        mImageHeight = imageHeight;
+        if (!wasShown) {
+            fitToView();
+        } else {
+            updateScaleLimits();
+            constrain();
+        }
+        invalidate();
+    }
+
+    // Takes over the decoder and recycles it when it's replaced or the view is released.
+    public void setRegionDecoder(BitmapRegionDecoder decoder) {
+        clearTiles();
+        if (mRegionDecoder != null) {
+            mRegionDecoder.recycle();
+        }
+        mRegionDecoder = decoder;
+        if (mTileExecutor == null) {
+            mTileExecutor = newTileExecutor();
+        }
+        invalidate();
+    }
+
+    // Stops tile decoding for good; call when the view is going away.
+    public void release() {
+        if (mTileExecutor != null) {
+            mTileExecutor.shutdownNow();
+            mTileExecutor = null;
+        }
+        clearTiles();
+        if (mRegionDecoder != null) {
+            mRegionDecoder.recycle();
+            mRegionDecoder = null;
+        }
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        if (mBitmap != null) {
+            fitToView();
+        }
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        if (mBitmap == null) {
+            return false;
+        }
+        boolean handled = mScaleDetector.onTouchEvent(event);
+        handled |= mGestureDetector.onTouchEvent(event);
+        return handled;
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        if (mBitmap == null) {
+            return;
+        }
+        canvas.save();
+        canvas.concat(mMatrix);
+        mImageRect.set(0, 0, mImageWidth, mImageHeight);
+        canvas.drawBitmap(mBitmap, null, mImageRect, mPaint);
+        if (mRegionDecoder != null) {
+            drawTiles(canvas);
+        }
+        canvas.restore();
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        release();
+    }
+
+    private void drawTiles(Canvas canvas) {
+        float scale = getScale();
+        if (mBitmap.getWidth() >= mImageWidth * scale) {
+            // The whole bitmap already has all the detail the screen can show.
+            cancelTiles(null);
+            return;
+        }
+        int sampleSize = 1;
+        while (sampleSize * 2 * scale <= 1) {
+            sampleSize *= 2;
+        }
+        int tileImageSize = TILE_SIZE * sampleSize;
+        mInverse.reset();
+        mMatrix.invert(mInverse);
+        mVisibleRect.set(0, 0, getWidth(), getHeight());
+        mInverse.mapRect(mVisibleRect);
+        int firstColumn = Math.max(0, (int) (mVisibleRect.left / tileImageSize));
+        int lastColumn = Math.min((mImageWidth - 1) / tileImageSize, (int) (mVisibleRect.right / tileImageSize));
+        int firstRow = Math.max(0, (int) (mVisibleRect.top / tileImageSize));
+        int lastRow = Math.min((mImageHeight - 1) / tileImageSize, (int) (mVisibleRect.bottom / tileImageSize));
+
+        mVisibleTiles.clear();
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                String key = sampleSize + "/" + column + "/" + row;
+                mVisibleTiles.add(key);
+                Rect region = new Rect(column * tileImageSize, row * tileImageSize,
+                        Math.min((column + 1) * tileImageSize, mImageWidth),
+                        Math.min((row + 1) * tileImageSize, mImageHeight));
+                Bitmap tile = mTiles.get(key);
+                if (tile != null) {
+                    mImageRect.set(region);
+                    canvas.drawBitmap(tile, null, mImageRect, mPaint);
+                } else if (mLoadingTiles.add(key)) {
+                    mTileExecutor.execute(new TileTask(mRegionDecoder, key, region, sampleSize));
+                }
+            }
+        }
+        cancelTiles(mVisibleTiles);
+    }
+
+    // Drops queued tiles that aren't in keep, or all of them if keep is null.
+    private void cancelTiles(Set<String> keep) {
+        for (Runnable r : mTileExecutor.getQueue()) {
+            String key = ((TileTask) r).mKey;
+            if ((keep == null || !keep.contains(key)) && mTileExecutor.remove(r)) {
+                mLoadingTiles.remove(key);
+            }
+        }
+    }
+
+    private void clearTiles() {
+        if (mTileExecutor != null) {
+            mTileExecutor.getQueue().clear();
+        }
+        mLoadingTiles.clear();
+        mTiles.evictAll();
+    }
+
+    private void onTileDecoded(BitmapRegionDecoder decoder, String key, Bitmap tile) {
+        if (decoder != mRegionDecoder) {
+            return;
+        }
+        mLoadingTiles.remove(key);
+        if (tile != null) {
+            mTiles.put(key, tile);
+            invalidate();
+        }
+    }
+
+    private void zoomBy(float factor, float focusX, float focusY) {
+        float scale = getScale();
+        float newScale = Math.max(mMinScale, Math.min(mMaxScale, scale * factor));
+        mMatrix.postScale(newScale / scale, newScale / scale, focusX, focusY);
+        constrain();
+        invalidate();
+    }
+
+    private float getScale() {
+        mMatrix.getValues(mValues);
+        return mValues[Matrix.MSCALE_X];
+    }
+
+    private void fitToView() {
+        updateScaleLimits();
+        mMatrix.setScale(mMinScale, mMinScale);
+        mMatrix.postTranslate((getWidth() - mImageWidth * mMinScale) / 2,
+                (getHeight() - mImageHeight * mMinScale) / 2);
+    }
+
+    private void updateScaleLimits() {
+        if (getWidth() == 0 || getHeight() == 0) {
+            mMinScale = mMaxScale = 1;
+            return;
+        }
+        mMinScale = Math.min((float) getWidth() / mImageWidth, (float) getHeight() / mImageHeight);
+        mMaxScale = Math.max(MAX_PIXEL_ZOOM, mMinScale * 2);
+    }
+
+    // Keeps the scale within limits and the image centred along a side it doesn't fill,
+    // without gaps along a side it does.
+    private void constrain() {
+        float scale = getScale();
+        if (scale < mMinScale || scale > mMaxScale) {
+            float newScale = Math.max(mMinScale, Math.min(mMaxScale, scale));
+            mMatrix.postScale(newScale / scale, newScale / scale, getWidth() / 2f, getHeight() / 2f);
+        }
+        mImageRect.set(0, 0, mImageWidth, mImageHeight);
+        mMatrix.mapRect(mImageRect);
+        mMatrix.postTranslate(constrainOffset(mImageRect.left, mImageRect.right, getWidth()),
+                constrainOffset(mImageRect.top, mImageRect.bottom, getHeight()));
+    }
+
+    private static float constrainOffset(float start, float end, int viewSize) {
+        float size = end - start;
+        if (size <= viewSize) {
+            return (viewSize - size) / 2 - start;
+        }
+        if (start > 0) {
+            return -start;
+        }
+        if (end < viewSize) {
+            return viewSize - end;
+        }
+        return 0;
+    }
+
+    private static ThreadPoolExecutor newTileExecutor() {
+        ThreadFactory threadFactory = new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, TAG);
+            }
+        };
+        return new ThreadPoolExecutor(TILE_THREAD_COUNT, TILE_THREAD_COUNT, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), threadFactory);
+    }
+
+    private class TileTask implements Runnable {
+
+        private final BitmapRegionDecoder mDecoder;
+        private final String mKey;
+        private final Rect mRegion;
+        private final int mSampleSize;
+
+        TileTask(BitmapRegionDecoder decoder, String key, Rect region, int sampleSize) {
+            mDecoder = decoder;
+            mKey = key;
+            mRegion = region;
+            mSampleSize = sampleSize;
+        }
+
+        @Override
+        public void run() {
+            Bitmap tile = null;
+            try {
+                BitmapFactory.Options options = new BitmapFactory.Options();
+                options.inSampleSize = mSampleSize;
+                options.inPreferredConfig = Bitmap.Config.RGB_565;
+                tile = mDecoder.decodeRegion(mRegion, options);
+            } catch (IllegalStateException ise) {
+                // Recycled in the meantime.
+            } catch (OutOfMemoryError oome) {
+                Log.e(TAG, "Out of memory decoding tile " + mKey, oome);
+            }
+            final Bitmap decoded = tile;
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    onTileDecoded(mDecoder, mKey, decoded);
+                }
+            });
+        }
+    }
+
+}
@@ -3,15 +3,15 @@ package ru.coffeeplanter.photogallery;
 import android.content.Context;
 import android.content.Intent;
 import android.graphics.Bitmap;
-import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.support.annotation.Nullable;
 import android.support.v4.app.Fragment;
 import android.support.v4.content.ContextCompat;
 import android.support.v4.widget.ContentLoadingProgressBar;
+import android.support.v7.util.DiffUtil;
 import android.support.v7.widget.GridLayoutManager;
 import android.support.v7.widget.RecyclerView;
 import android.support.v7.widget.SearchView;
@@ -27,6 +27,7 @@ import android.view.inputmethod.InputMethodManager;
 import android.widget.ImageView;
 import android.widget.Toast;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -36,16 +37,37 @@ public class PhotoGalleryFragment extends VisibleFragment {
 
     private final int COLUMN_WIDTH = 200;
     private final int PRELOADED_BITMAPS_COUNT = 20;
+    // How many stored pages are shown on start, before the network refresh.
+    private final int RESTORED_PAGES_COUNT = 5;
+    // Next pages are loaded while fewer than this many items are left below the viewport.
+    private final int NEXT_PAGE_PREFETCH_DISTANCE = 50;
+    private final int MAX_CONCURRENT_PAGE_LOADS = 2;
 
     private ContentLoadingProgressBar mProgressBar;
     private RecyclerView mPhotoRecyclerView;
-    private List<GalleryItem> mItems = new ArrayList<>();
+    private GalleryPagingSource mItems = new GalleryPagingSource();
     private PhotoAdapter mAdapter = new PhotoAdapter(mItems);
     private int totalPages = 1;
     private int currentPage = 1;
     private int itemsPerPage = 100;
     private boolean isLoadingData = false;
+    private SearchResultCache mSearchResultCache;
+    private NextPagePrefetcher mNextPagePrefetcher =
+            new NextPagePrefetcher(NEXT_PAGE_PREFETCH_DISTANCE, MAX_CONCURRENT_PAGE_LOADS);
+    private GalleryFetchPipeline mFetchPipeline;
+    // Query key of the list being shown, null before the first one.
+    private String mShownQueryKey;
+    private int mEndReachedPageCount = 0;
     private ThumbnailDownloader<PhotoHolder> mThumbnailDownloader;
+    private ThumbnailPrefetcher mThumbnailPrefetcher = new ThumbnailPrefetcher();
+    private int mLastScrollDirection = 1;
+    private MenuItem mWatchItem;
+    private SearchDebouncer mSearchDebouncer;
+    // Query key the list is showing or on its way to.
+    private String mRequestedQueryKey;
+    private GalleryFetchPipeline.Request<FetchedPage> mFirstPageRequest;
+    private int mFirstPageRequestCount = 0;
+    private int mCancelledFirstPageRequestCount = 0;
 
     public static PhotoGalleryFragment newInstance() {
         return new PhotoGalleryFragment();
@@ -56,21 +78,41 @@ public class PhotoGalleryFragment extends VisibleFragment {
         super.onCreate(savedInstanceState);
         setRetainInstance(true);
         setHasOptionsMenu(true);
+        Handler responseHandler = new Handler();
+        HttpClient.getInstance().setConditionalCacheDirectory(
+                new File(getActivity().getCacheDir(), HttpClient.CONDITIONAL_CACHE_DIRECTORY));
+        mSearchResultCache = SearchResultCache.get(getActivity());
+        mFetchPipeline = new GalleryFetchPipeline(responseHandler);
+        mSearchDebouncer = new SearchDebouncer(responseHandler, new SearchDebouncer.Listener() {
+            @Override
+            public void onSearch(String query) {
+                QueryPreferences.setStoredQuery(getActivity(), query);
+                updateItems();
+            }
+        });
+        mItems.setCallback(new GalleryPagingSource.Callback() {
+            @Override
+            public void onPageNeeded(int generation, int page) {
+                reloadPage(QueryPreferences.getStoredQuery(getActivity()), generation, page);
+            }
+        });
         updateItems();
 
-        Handler responseHandler = new Handler();
-        mThumbnailDownloader = new ThumbnailDownloader<>(responseHandler);
+        File thumbnailCacheDirectory = new File(getActivity().getCacheDir(), ThumbnailDownloader.DISK_CACHE_DIRECTORY);
+        int memoryCacheSize = BitmapMemoryCache.calculateDefaultSize(getActivity());
+        mThumbnailDownloader = new ThumbnailDownloader<>(responseHandler, thumbnailCacheDirectory, memoryCacheSize);
         mThumbnailDownloader.setThumbnailDownloadListener(new ThumbnailDownloader.ThumbnailDownloadListener<PhotoHolder>() {
             @Override
             public void onThumbnailDownloaded(PhotoHolder photoHolder, Bitmap bitmap) {
-                if (!isAdded()) return;
-                Drawable drawable = new BitmapDrawable(getResources(), bitmap);
-                photoHolder.bindDrawable(drawable);
+                if (!isAdded()) {
+                    mThumbnailDownloader.releaseBitmap(bitmap);
+                    return;
+                }
+                photoHolder.bindBitmap(bitmap);
             }
         });
         mThumbnailDownloader.start();
-        mThumbnailDownloader.getLooper();
-        Log.i(TAG, "Background thread started");
+        Log.i(TAG, "Thumbnail workers started");
     }
 
     @Nullable
@@ -84,30 +126,22 @@ public class PhotoGalleryFragment extends VisibleFragment {
         mPhotoRecyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
             @Override
             public void onScrollStateChanged(RecyclerView recyclerView, int newState) {
-                switch (newState) {
-                    case RecyclerView.SCROLL_STATE_DRAGGING:
-                        mThumbnailDownloader.clearPreloadQueue();
-                        break;
-                    case RecyclerView.SCROLL_STATE_IDLE:
-                        preloadImagesToCache(gridLayoutManager);
-                        break;
+                // Prefetching keeps going while dragging and flinging, see prefetchAhead().
+                if (newState == RecyclerView.SCROLL_STATE_IDLE) {
+                    preloadImagesToCache(gridLayoutManager);
                 }
             }
             @Override
             public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
                 super.onScrolled(recyclerView, dx, dy);
-                int visibleItemsCount = gridLayoutManager.getChildCount();
-                int notVisiblePastItemsCount = gridLayoutManager.findFirstVisibleItemPosition();
-                int totalItemsCount = gridLayoutManager.getItemCount();
-                if ((visibleItemsCount + notVisiblePastItemsCount) >= totalItemsCount) {
-                    if ((currentPage < totalPages) && (!isLoadingData)) {
-                        if (currentPage > 1) {
-                            Toast.makeText(getActivity(), R.string.loading_next_page_message, Toast.LENGTH_SHORT).show();
-                        }
-                        String query = QueryPreferences.getStoredQuery(getActivity());
-                        new FetchItemsTask(query).execute(currentPage + 1);
-                    }
-                }
+                mItems.setViewport(gridLayoutManager.findFirstVisibleItemPosition(),
+                        gridLayoutManager.findLastVisibleItemPosition());
+                mThumbnailDownloader.setViewport(
+                        gridLayoutManager.findFirstVisibleItemPosition(),
+                        gridLayoutManager.findLastVisibleItemPosition(),
+                        dy);
+                prefetchAhead(gridLayoutManager, dy);
+                loadNextPages(gridLayoutManager.findLastVisibleItemPosition());
             }
         });
 
@@ -115,19 +149,23 @@ public class PhotoGalleryFragment extends VisibleFragment {
             @Override
             public void onGlobalLayout() {
                 mPhotoRecyclerView.getViewTreeObserver().removeOnGlobalLayoutListener(this);
-                int columnsCount = mPhotoRecyclerView.getWidth() / COLUMN_WIDTH;
+                int columnsCount = Math.max(1, mPhotoRecyclerView.getWidth() / COLUMN_WIDTH);
                 gridLayoutManager.setSpanCount(columnsCount);
+                mThumbnailDownloader.setTargetSize(mPhotoRecyclerView.getWidth() / columnsCount,
+                        getResources().getDimensionPixelSize(R.dimen.gallery_item_height));
                 preloadImagesToCache(gridLayoutManager);
             }
         });
 
-        setupAdapter(true);
+        setupAdapter();
         return v;
     }
 
     @Override
     public void onDestroyView() {
         super.onDestroyView();
+        // Recycles every holder, so the bitmaps they show are released.
+        mPhotoRecyclerView.setAdapter(null);
         mThumbnailDownloader.clearPreloadQueue();
         mThumbnailDownloader.clearQueue();
     }
@@ -135,8 +173,14 @@ public class PhotoGalleryFragment extends VisibleFragment {
     @Override
     public void onDestroy() {
         super.onDestroy();
+        mSearchDebouncer.cancel();
+        mFetchPipeline.quit();
+        Log.i(TAG, mSearchDebouncer.getStats() + ", first page requests: " + mFirstPageRequestCount
+                + ", cancelled: " + mCancelledFirstPageRequestCount);
+        Log.i(TAG, "HTTP stats: " + HttpClient.getInstance().getStats());
+        Log.i(TAG, "Search result cache stats: " + mSearchResultCache.getStats());
         mThumbnailDownloader.quit();
-        Log.i(TAG, "Background thread destroyed");
+        Log.i(TAG, "Thumbnail workers destroyed");
     }
 
     @Override
@@ -159,8 +203,10 @@ public class PhotoGalleryFragment extends VisibleFragment {
             public boolean onQueryTextSubmit(String query) {
                 Log.d(TAG, "QueryTextSubmit: " + query);
                 QueryPreferences.setStoredQuery(getActivity(), query.trim());
-                mItems.clear();
-                updateItems();
+                // Typing may have got the list there already.
+                if (!GalleryStore.getQueryKey(query).equals(mRequestedQueryKey)) {
+                    updateItems();
+                }
                 switchKeyboard(false);
                 return true;
             }
@@ -168,6 +214,7 @@ public class PhotoGalleryFragment extends VisibleFragment {
             @Override
             public boolean onQueryTextChange(String newText) {
                 Log.d(TAG, "QueryTextChange: " + newText);
+                mSearchDebouncer.onTextChanged(newText);
                 return false;
             }
         });
@@ -176,7 +223,6 @@ public class PhotoGalleryFragment extends VisibleFragment {
             @Override
             public boolean onClose() {
                 QueryPreferences.setStoredQuery(getActivity(), null);
-                mItems.clear();
                 updateItems();
                 return false;
             }
@@ -190,6 +236,9 @@ public class PhotoGalleryFragment extends VisibleFragment {
 //            }
 //        });
 
+        mWatchItem = menu.findItem(R.id.menu_item_watch);
+        updateWatchItem();
+
         MenuItem toggleItem = menu.findItem(R.id.menu_item_toggle_polling);
         if (PollService.isServiceAlarmOn(getActivity())) {
             toggleItem.setTitle(R.string.stop_polling);
@@ -204,7 +253,6 @@ public class PhotoGalleryFragment extends VisibleFragment {
         switch (item.getItemId()) {
             case R.id.menu_item_clear:
                 QueryPreferences.setStoredQuery(getActivity(), null);
-                mItems.clear();
                 updateItems();
                 return true;
             case R.id.menu_item_toggle_polling:
@@ -212,28 +260,298 @@ public class PhotoGalleryFragment extends VisibleFragment {
                 PollService.setServiceAlarm(getActivity(), shouldStartAlarm);
                 getActivity().invalidateOptionsMenu();
                 return true;
+            case R.id.menu_item_watch:
+                String query = QueryPreferences.getStoredQuery(getActivity());
+                boolean shouldWatch = !QueryPreferences.isQueryWatched(getActivity(), query);
+                if (!QueryPreferences.setQueryWatched(getActivity(), query, shouldWatch)) {
+                    Toast.makeText(getActivity(), getString(R.string.watchlist_full,
+                            QueryPreferences.MAX_WATCHED_QUERIES), Toast.LENGTH_SHORT).show();
+                }
+                updateWatchItem();
+                return true;
             default:
                 return super.onOptionsItemSelected(item);
         }
     }
 
-    private void updateItems() {
+    // The watch item follows the query being shown.
+    private void updateWatchItem() {
+        if (mWatchItem == null) {
+            return;
+        }
         String query = QueryPreferences.getStoredQuery(getActivity());
-        new FetchItemsTask(query).execute(currentPage);
+        mWatchItem.setTitle(QueryPreferences.isQueryWatched(getActivity(), query)
+                ? R.string.unwatch_search : R.string.watch_search);
     }
 
-    private void setupAdapter(boolean newList) {
-        if (isAdded()) {
-            if (mPhotoRecyclerView.getAdapter() != null) {
-                if (newList) {
-                    mAdapter.notifyDataSetChanged();
-                    mPhotoRecyclerView.smoothScrollToPosition(View.SCROLLBAR_POSITION_DEFAULT);
+    private void updateItems() {
+        updateWatchItem();
+        final String query = QueryPreferences.getStoredQuery(getActivity());
+        final String queryKey = GalleryStore.getQueryKey(query);
+        final boolean queryChanged = !queryKey.equals(mShownQueryKey);
+        mRequestedQueryKey = queryKey;
+        mSearchDebouncer.onSearched(query);
+        cancelLoads();
+        // A query shown a moment ago is still in memory and comes back without waiting for the disk.
+        List<PhotoListPage> memoryPages = mSearchResultCache.getLeadingPagesFromMemory(queryKey, RESTORED_PAGES_COUNT);
+        if (!memoryPages.isEmpty()) {
+            showStoredPages(query, memoryPages, queryChanged);
+            return;
+        }
+        isLoadingData = true;
+        mFetchPipeline.submit(new GalleryFetchPipeline.Job<List<PhotoListPage>>() {
+            @Override
+            public List<PhotoListPage> run() {
+                return mSearchResultCache.getLeadingPages(queryKey, RESTORED_PAGES_COUNT);
+            }
+        }, new GalleryFetchPipeline.Callback<List<PhotoListPage>>() {
+            @Override
+            public void onResult(List<PhotoListPage> pages) {
+                if (pages == null || pages.isEmpty()) {
+                    if (!queryChanged) {
+                        // Nothing stored, keep showing what we have while the first page loads.
+                        loadFirstPage(query);
+                        return;
+                    }
+                    // While typing, what was found for the text so far stands in until the first page loads.
+                    String prefixKey = mSearchResultCache.findPrefixKeyInMemory(query);
+                    pages = prefixKey != null
+                            ? mSearchResultCache.getLeadingPagesFromMemory(prefixKey, RESTORED_PAGES_COUNT)
+                            : new ArrayList<PhotoListPage>();
+                    if (!pages.isEmpty()) {
+                        replaceItems(prefixKey, pages, false, new Runnable() {
+                            @Override
+                            public void run() {
+                                loadFirstPage(query);
+                            }
+                        });
+                        return;
+                    }
+                }
+                showStoredPages(query, pages, queryChanged);
+            }
+        });
+    }
+
+    // Shows cached pages and refetches the first one unless it's fresh.
+    private void showStoredPages(final String query, List<PhotoListPage> pages, boolean scrollToTop) {
+        final boolean isStale = pages.isEmpty() || !SearchResultCache.isFresh(pages.get(0));
+        replaceItems(GalleryStore.getQueryKey(query), pages, scrollToTop, new Runnable() {
+            @Override
+            public void run() {
+                if (isStale) {
+                    loadFirstPage(query);
+                }
+            }
+        });
+    }
+
+    // Drops every list load in flight; none of their results will be delivered.
+    private void cancelLoads() {
+        if (mFirstPageRequest != null) {
+            // Superseded, typically by the next keystroke.
+            mCancelledFirstPageRequestCount++;
+            mFirstPageRequest = null;
+        }
+        mFetchPipeline.cancelAll();
+        mNextPagePrefetcher.reset();
+        mEndReachedPageCount = 0;
+        isLoadingData = false;
+    }
+
+    // Swaps the shown list for the given pages. The difference is worked out on the pipeline's
+    // computation thread and dispatched as precise adapter updates, so unchanged cells aren't rebound.
+    private void replaceItems(final String queryKey, final List<PhotoListPage> pages,
+                              final boolean scrollToTop, final Runnable onReplaced) {
+        final List<GalleryItem> oldItems = new ArrayList<>(mItems);
+        final List<GalleryItem> newItems = new ArrayList<>();
+        for (PhotoListPage page : pages) {
+            newItems.addAll(page.getItems());
+        }
+        final int modificationCount = mItems.getModificationCount();
+        isLoadingData = true;
+        mFetchPipeline.submitComputation(new GalleryFetchPipeline.Job<DiffUtil.DiffResult>() {
+            @Override
+            public DiffUtil.DiffResult run() {
+                return DiffUtil.calculateDiff(new GalleryItemDiffCallback(oldItems, newItems), true);
+            }
+        }, new GalleryFetchPipeline.Callback<DiffUtil.DiffResult>() {
+            @Override
+            public void onResult(DiffUtil.DiffResult diffResult) {
+                // The list may have grown while the diff was computed, the diff doesn't apply then.
+                boolean diffApplies = diffResult != null && modificationCount == mItems.getModificationCount();
+                mItems.clear();
+                for (PhotoListPage page : pages) {
+                    mItems.appendPage(page.getPage(), page.getItems());
+                }
+                mShownQueryKey = queryKey;
+                if (pages.isEmpty()) {
+                    totalPages = 1;
+                    currentPage = 1;
                 } else {
-                    mAdapter.notifyItemRangeInserted(currentPage * itemsPerPage, itemsPerPage);
+                    PhotoListPage lastPage = pages.get(pages.size() - 1);
+                    totalPages = lastPage.getPages();
+                    currentPage = lastPage.getPage();
+                    itemsPerPage = lastPage.getPerPage();
                 }
-            } else {
-                mPhotoRecyclerView.setAdapter(mAdapter);
+                mThumbnailPrefetcher.reset();
+                isLoadingData = false;
+                if (isAdded() && mPhotoRecyclerView != null && mPhotoRecyclerView.getAdapter() != null) {
+                    if (diffApplies) {
+                        diffResult.dispatchUpdatesTo(mAdapter);
+                    } else {
+                        mAdapter.notifyDataSetChanged();
+                    }
+                    if (scrollToTop) {
+                        mPhotoRecyclerView.scrollToPosition(0);
+                    }
+                }
+                if (!mItems.isEmpty() && mPhotoRecyclerView != null) {
+                    mPhotoRecyclerView.setVisibility(View.VISIBLE);
+                    mProgressBar.hide();
+                }
+                if (onReplaced != null) {
+                    onReplaced.run();
+                }
+            }
+        });
+    }
+
+    // Loads the first page, on its own or to refresh the stored one.
+    private void loadFirstPage(final String query) {
+        final String queryKey = GalleryStore.getQueryKey(query);
+        if (mItems.isEmpty() && mProgressBar != null && mPhotoRecyclerView != null) {
+            mProgressBar.show();
+            mPhotoRecyclerView.setVisibility(View.GONE);
+        }
+        isLoadingData = true;
+        mFirstPageRequestCount++;
+        mFirstPageRequest = mFetchPipeline.submit(new GalleryFetchPipeline.Job<FetchedPage>() {
+            @Override
+            public FetchedPage run() {
+                PhotoListPage page = PhotoListPage.fetch(query, 1);
+                if (page == null) {
+                    return null;
+                }
+                return new FetchedPage(page, mSearchResultCache.put(queryKey, page));
+            }
+        }, new GalleryFetchPipeline.Callback<FetchedPage>() {
+            @Override
+            public void onResult(FetchedPage fetchedPage) {
+                mFirstPageRequest = null;
+                isLoadingData = false;
+                if (mPhotoRecyclerView != null) {
+                    mPhotoRecyclerView.setVisibility(View.VISIBLE);
+                    mProgressBar.hide();
+                }
+                if (fetchedPage == null) {
+                    return;
+                }
+                if (!mItems.isEmpty() && !fetchedPage.mChanged) {
+                    // The stored list is still current.
+                    totalPages = fetchedPage.mPage.getPages();
+                    return;
+                }
+                // Pages loading for the old first page no longer line up.
+                cancelLoads();
+                List<PhotoListPage> pages = new ArrayList<>();
+                pages.add(fetchedPage.mPage);
+                replaceItems(queryKey, pages, false, null);
             }
+        });
+    }
+
+    // Starts loading the pages the scroll is heading for, before the end of the list is reached.
+    private void loadNextPages(int lastVisiblePosition) {
+        if (isLoadingData || lastVisiblePosition < 0) {
+            // The first page is (re)loading, later pages would be based on the old one.
+            return;
+        }
+        List<Integer> pages = mNextPagePrefetcher.getPagesToLoad(lastVisiblePosition, mItems.size(),
+                mItems.getPageCount(), totalPages, itemsPerPage);
+        String query = QueryPreferences.getStoredQuery(getActivity());
+        for (int page : pages) {
+            loadNextPage(query, mItems.getGeneration(), page);
+        }
+        if (lastVisiblePosition >= mItems.size() - 1 && mNextPagePrefetcher.isLoading()
+                && mEndReachedPageCount != mItems.getPageCount()) {
+            // Prefetching fell behind, tell the user once per page.
+            mEndReachedPageCount = mItems.getPageCount();
+            Toast.makeText(getActivity(), R.string.loading_next_page_message, Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    // Loads a page after the first one; several may run at once.
+    private void loadNextPage(final String query, final int generation, final int pageNumber) {
+        mFetchPipeline.submit(new GalleryFetchPipeline.Job<PhotoListPage>() {
+            @Override
+            public PhotoListPage run() {
+                PhotoListPage page = PhotoListPage.fetch(query, pageNumber);
+                if (page != null) {
+                    mSearchResultCache.put(GalleryStore.getQueryKey(query), page);
+                }
+                return page;
+            }
+        }, new GalleryFetchPipeline.Callback<PhotoListPage>() {
+            @Override
+            public void onResult(PhotoListPage page) {
+                if (generation != mItems.getGeneration()) {
+                    return;
+                }
+                if (page == null) {
+                    mNextPagePrefetcher.onPageFailed(pageNumber);
+                    return;
+                }
+                for (PhotoListPage readyPage : mNextPagePrefetcher.onPageLoaded(page, mItems.getPageCount())) {
+                    int positionStart = mItems.appendPage(readyPage.getPage(), readyPage.getItems());
+                    if (positionStart < 0) {
+                        continue;
+                    }
+                    totalPages = readyPage.getPages();
+                    currentPage = readyPage.getPage();
+                    itemsPerPage = readyPage.getPerPage();
+                    if (isAdded()) {
+                        mAdapter.notifyItemRangeInserted(positionStart, readyPage.getItems().size());
+                    }
+                }
+            }
+        });
+    }
+
+    // Brings back a page the paging source dropped, from the store if it's there.
+    private void reloadPage(final String query, final int generation, final int pageNumber) {
+        mFetchPipeline.submit(new GalleryFetchPipeline.Job<List<GalleryItem>>() {
+            @Override
+            public List<GalleryItem> run() {
+                String queryKey = GalleryStore.getQueryKey(query);
+                PhotoListPage page = mSearchResultCache.getPage(queryKey, pageNumber);
+                if (page == null) {
+                    page = PhotoListPage.fetch(query, pageNumber);
+                    if (page == null) {
+                        return new ArrayList<>();
+                    }
+                    mSearchResultCache.put(queryKey, page);
+                }
+                return page.getItems();
+            }
+        }, new GalleryFetchPipeline.Callback<List<GalleryItem>>() {
+            @Override
+            public void onResult(List<GalleryItem> items) {
+                if (items == null) {
+                    items = new ArrayList<>();
+                }
+                int positionStart = mItems.restorePage(generation, pageNumber, items);
+                if (positionStart >= 0 && isAdded()) {
+                    mAdapter.notifyItemRangeChanged(positionStart, mItems.getPageSize(pageNumber));
+                }
+            }
+        });
+    }
+
+    // List changes reach the adapter through precise notifications, see replaceItems().
+    private void setupAdapter() {
+        if (isAdded() && mPhotoRecyclerView.getAdapter() == null) {
+            mPhotoRecyclerView.setAdapter(mAdapter);
         }
     }
 
@@ -257,7 +575,8 @@ public class PhotoGalleryFragment extends VisibleFragment {
                     mItems.subList(
                             firstVisibleItemPosition - previousNumberToPreload,
                             lastVisibleItemPosition + forwardNumberToPreload
-                    )
+                    ),
+                    firstVisibleItemPosition - previousNumberToPreload
             );
         } catch (IndexOutOfBoundsException iobe) {
             Log.e(TAG, String.format("Error getting sublist of GalleryItem objects: %s",
@@ -265,6 +584,30 @@ public class PhotoGalleryFragment extends VisibleFragment {
         }
     }
 
+    // Requests the cells the current scroll is about to bring into view, sized to the scroll
+    // speed and to how fast thumbnails are coming in.
+    private void prefetchAhead(GridLayoutManager gridLayoutManager, int dy) {
+        if (dy != 0) {
+            int scrollDirection = dy > 0 ? 1 : -1;
+            if (scrollDirection != mLastScrollDirection) {
+                // What was fetched ahead is now behind us.
+                mThumbnailDownloader.clearPreloadQueue();
+                mLastScrollDirection = scrollDirection;
+            }
+        }
+        int[] range = mThumbnailPrefetcher.onScrolled(dy,
+                getResources().getDimensionPixelSize(R.dimen.gallery_item_height),
+                gridLayoutManager.getSpanCount(),
+                gridLayoutManager.findFirstVisibleItemPosition(),
+                gridLayoutManager.findLastVisibleItemPosition(),
+                mItems.size(),
+                mThumbnailDownloader.getThroughput(),
+                SystemClock.uptimeMillis());
+        if (range != null) {
+            mThumbnailDownloader.loadCache(mItems.subList(range[0], range[1]), range[0]);
+        }
+    }
+
     // Show / hide keyboard.
     private void switchKeyboard(boolean show) {
         View view = getActivity().getCurrentFocus();
@@ -282,6 +625,7 @@ public class PhotoGalleryFragment extends VisibleFragment {
 
         private ImageView mItemImageView;
         private GalleryItem mGalleryItem;
+        private Bitmap mBitmap;
 
         public PhotoHolder(View itemView) {
             super(itemView);
@@ -290,17 +634,36 @@ public class PhotoGalleryFragment extends VisibleFragment {
         }
 
         public void bindDrawable(Drawable drawable) {
+            releaseBitmap();
             mItemImageView.setImageDrawable(drawable);
         }
 
+        public void bindBitmap(Bitmap bitmap) {
+            releaseBitmap();
+            mBitmap = bitmap;
+            mItemImageView.setImageBitmap(bitmap);
+        }
+
+        // Lets the downloader reuse the bitmap once no cell shows it.
+        public void releaseBitmap() {
+            if (mBitmap != null) {
+                mThumbnailDownloader.releaseBitmap(mBitmap);
+                mBitmap = null;
+            }
+        }
+
         public void bindGalleryItem(GalleryItem galleryItem) {
             mGalleryItem = galleryItem;
         }
 
         @Override
         public void onClick(View v) {
+            if (mGalleryItem == null) {
+                // Its page is still being reloaded.
+                return;
+            }
 //            Intent i = new Intent(Intent.ACTION_VIEW, mGalleryItem.getPhotoPageUri());
-            Intent i = PhotoPageActivity.newIntent(getActivity(), mGalleryItem.getPhotoPageUri());
+            Intent i = PhotoDetailActivity.newIntent(getActivity(), mGalleryItem);
             startActivity(i);
         }
 
@@ -319,11 +682,17 @@ public class PhotoGalleryFragment extends VisibleFragment {
         }
         @Override
         public void onBindViewHolder(PhotoHolder holder, int position) {
+            // Null while the page of the position is reloaded, it's bound again once it's back.
             GalleryItem galleryItem = mGalleryItems.get(position);
             holder.bindGalleryItem(galleryItem);
             Drawable placeHolder = ContextCompat.getDrawable(getActivity(), R.drawable.image_placeholder);
             holder.bindDrawable(placeHolder);
-            mThumbnailDownloader.queueThumbnail(holder, galleryItem.getUrl());
+            mThumbnailDownloader.queueThumbnail(holder, galleryItem != null ? galleryItem.getUrl() : null, position);
+        }
+        @Override
+        public void onViewRecycled(PhotoHolder holder) {
+            mThumbnailDownloader.cancelThumbnail(holder);
+            holder.bindDrawable(null);
         }
         @Override
         public int getItemCount() {
@@ -331,52 +700,15 @@ public class PhotoGalleryFragment extends VisibleFragment {
         }
     }
 
-    private class FetchItemsTask extends AsyncTask<Integer, Void, List<GalleryItem>> {
-
-        private String mQuery;
-        int[] mPhotoListParameters;
-
-        public FetchItemsTask(String query) {
-            mQuery = query;
-        }
+    private static class FetchedPage {
 
-        @Override
-        protected void onPreExecute() {
-            if (mItems.isEmpty() && mProgressBar != null && mPhotoRecyclerView != null) {
-                mProgressBar.show();
-                mPhotoRecyclerView.setVisibility(View.GONE);
-            }
-            isLoadingData = true;
-        }
+        private final PhotoListPage mPage;
+        // Whether it differs from the stored first page.
+        private final boolean mChanged;
 
-        @Override
-        protected List<GalleryItem> doInBackground(Integer... params) {
-            FlickrFetchr flickFetchr = new FlickrFetchr();
-            List<GalleryItem> galleryItemsList;
-            if (mQuery == null) {
-                galleryItemsList = flickFetchr.fetchRecentPhotos(params[0]);
-            } else {
-                galleryItemsList = flickFetchr.searchPhotos(mQuery, params[0]);
-            }
-            mPhotoListParameters =  flickFetchr.parsePhotoListParameters();
-            return galleryItemsList;
-        }
-        @Override
-        protected void onPostExecute(List<GalleryItem> items) {
-            boolean newList = false;
-            if (mItems.isEmpty()) {
-                newList = true;
-                mPhotoRecyclerView.setVisibility(View.VISIBLE);
-                mProgressBar.hide();
-            }
-            mItems.addAll(items);
-            setupAdapter(newList);
-            if (mPhotoListParameters != null) {
-                totalPages = mPhotoListParameters[0];
-                currentPage = mPhotoListParameters[1];
-                itemsPerPage = mPhotoListParameters[2];
-            }
-            isLoadingData = false;
+        public FetchedPage(PhotoListPage page, boolean changed) {
+            mPage = page;
+            mChanged = changed;
         }
     }
 
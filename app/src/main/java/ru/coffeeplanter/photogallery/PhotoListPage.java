@@ -0,0 +1,109 @@
+package ru.coffeeplanter.photogallery;
+
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+// One page of a photo list response.
+public class PhotoListPage {
+
+    private static final String TAG = "PhotoListPage";
+    private static final String ENDPOINT = "https://api.flickr.com/services/rest/";
+
+    private final List<GalleryItem> mItems;
+    private final int mPages;
+    private final int mPage;
+    private final int mPerPage;
+    private final long mFetchedAt;
+    // Response bytes downloaded for the page, 0 if it was revalidated or not fetched at all.
+    private long mByteCount;
+
+    // Fetches a page of the recent photos, or of a search if the query isn't null.
+    // Returns null if the page couldn't be fetched or parsed; a search that found nothing
+    // comes back as an empty page. Does network I/O.
+    public static PhotoListPage fetch(String query, int page) {
+        String url = buildUrl(query, page);
+        try {
+            // Revalidated with the conditional cache when it's set, a 304 is parsed from the cached body.
+            AtomicLong bytesReceived = new AtomicLong();
+            PhotoListPage photoListPage = HttpClient.getInstance().get(url, new HttpClient.BodyParser<PhotoListPage>() {
+                @Override
+                public PhotoListPage parse(InputStream in) throws IOException {
+                    return PhotoListParser.parse(in);
+                }
+            }, bytesReceived);
+            photoListPage.mByteCount = bytesReceived.get();
+            return photoListPage;
+        } catch (IOException ioe) {
+            Log.e(TAG, "Failed to fetch items", ioe);
+            return null;
+        }
+    }
+
+    private static String buildUrl(String query, int page) {
+        Uri.Builder uriBuilder = newApiRequest(query == null ? "flickr.photos.getRecent" : "flickr.photos.search")
+                .appendQueryParameter("extras", "url_s")
+                .appendQueryParameter("page", String.valueOf(page));
+        if (query != null) {
+            uriBuilder.appendQueryParameter("text", query);
+        }
+        return uriBuilder.build().toString();
+    }
+
+    // A Flickr REST call with the app's key, answered in plain JSON.
+    static Uri.Builder newApiRequest(String method) {
+        return Uri.parse(ENDPOINT)
+                .buildUpon()
+                .appendQueryParameter("method", method)
+                .appendQueryParameter("api_key", BuildConfig.FLICKR_API_KEY)
+                .appendQueryParameter("format", "json")
+                .appendQueryParameter("nojsoncallback", "1");
+    }
+
+    public PhotoListPage(List<GalleryItem> items, int pages, int page, int perPage) {
+        this(items, pages, page, perPage, System.currentTimeMillis());
+    }
+
+    public PhotoListPage(List<GalleryItem> items, int pages, int page, int perPage, long fetchedAt) {
+        mItems = items;
+        mPages = pages;
+        mPage = page;
+        mPerPage = perPage;
+        mFetchedAt = fetchedAt;
+    }
+
+    public List<GalleryItem> getItems() {
+        return mItems;
+    }
+
+    public int getPages() {
+        return mPages;
+    }
+
+    public int getPage() {
+        return mPage;
+    }
+
+    public int getPerPage() {
+        return mPerPage;
+    }
+
+    // When the page came from the network, in System.currentTimeMillis() time.
+    public long getFetchedAt() {
+        return mFetchedAt;
+    }
+
+    public long getByteCount() {
+        return mByteCount;
+    }
+
+    // pages, page, perpage, in that order.
+    public int[] getParameters() {
+        return new int[] {mPages, mPage, mPerPage};
+    }
+
+}
@@ -0,0 +1,124 @@
+package ru.coffeeplanter.photogallery;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+// Reads a flickr.photos.* list response in a single pass, straight off the stream:
+// the gallery items and the paging metadata come out together, without building the
+// response string or a JSON tree first.
+public class PhotoListParser {
+
+    private PhotoListParser() {
+    }
+
+    public static PhotoListPage parse(InputStream in) throws IOException {
+        return parse(new InputStreamReader(in, "UTF-8"));
+    }
+
+    public static PhotoListPage parse(Reader in) throws IOException {
+        JsonReader reader = new JsonReader(in);
+        try {
+            PhotoListPage page = null;
+            String stat = null;
+            String message = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "photos":
+                        page = readPhotos(reader);
+                        break;
+                    case "stat":
+                        stat = reader.nextString();
+                        break;
+                    case "message":
+                        message = reader.nextString();
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+            if (page == null) {
+                throw new IOException("Flickr request failed: " + stat + " " + message);
+            }
+            return page;
+        } catch (IllegalStateException | NumberFormatException e) {
+            throw new IOException("Malformed photo list response", e);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static PhotoListPage readPhotos(JsonReader reader) throws IOException {
+        int pages = 1;
+        int page = 1;
+        int perPage = 0;
+        List<GalleryItem> items = new ArrayList<>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "pages":
+                    pages = reader.nextInt();
+                    break;
+                case "page":
+                    page = reader.nextInt();
+                    break;
+                case "perpage":
+                    perPage = reader.nextInt();
+                    break;
+                case "photo":
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        items.add(readItem(reader));
+                    }
+                    reader.endArray();
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return new PhotoListPage(items, pages, page, perPage);
+    }
+
+    static GalleryItem readItem(JsonReader reader) throws IOException {
+        GalleryItem item = new GalleryItem();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "id":
+                    item.setId(nextStringOrNull(reader));
+                    break;
+                case "title":
+                    item.setCaption(nextStringOrNull(reader));
+                    break;
+                case "url_s":
+                    item.setUrl(nextStringOrNull(reader));
+                    break;
+                case "owner":
+                    item.setOwner(nextStringOrNull(reader));
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return item;
+    }
+
+    private static String nextStringOrNull(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        return reader.nextString();
+    }
+
+}
@@ -0,0 +1,162 @@
+package ru.coffeeplanter.photogallery;
+
+import android.util.Log;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+
+// One of the sizes Flickr offers for a photo, from flickr.photos.getSizes. The sizes up to
+// 1024 pixels can be had by swapping the size in the photo URL, but the larger ones, 'h', 'k'
+// and the original, have secrets of their own and have to be looked up.
+public class PhotoSize {
+
+    private static final String TAG = "PhotoSize";
+
+    private final String mSource;
+    private final int mWidth;
+    private final int mHeight;
+
+    // Returns null if nothing could be found out. Does network I/O.
+    public static PhotoSize fetchLargest(String photoId) {
+        String url = PhotoListPage.newApiRequest("flickr.photos.getSizes")
+                .appendQueryParameter("photo_id", photoId)
+                .build().toString();
+        try {
+            return HttpClient.getInstance().get(url, new HttpClient.BodyParser<PhotoSize>() {
+                @Override
+                public PhotoSize parse(InputStream in) throws IOException {
+                    return parseLargest(new InputStreamReader(in, "UTF-8"));
+                }
+            }, null);
+        } catch (IOException ioe) {
+            Log.e(TAG, "Failed to fetch sizes of " + photoId, ioe);
+            return null;
+        }
+    }
+
+    // Returns null if the response lists no photo size; video sizes are skipped.
+    public static PhotoSize parseLargest(Reader in) throws IOException {
+        JsonReader reader = new JsonReader(in);
+        try {
+            PhotoSize largest = null;
+            boolean hasSizes = false;
+            String stat = null;
+            String message = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "sizes":
+                        hasSizes = true;
+                        largest = readLargest(reader);
+                        break;
+                    case "stat":
+                        stat = reader.nextString();
+                        break;
+                    case "message":
+                        message = reader.nextString();
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+            if (!hasSizes) {
+                throw new IOException("Flickr request failed: " + stat + " " + message);
+            }
+            return largest;
+        } catch (IllegalStateException | NumberFormatException e) {
+            throw new IOException("Malformed photo sizes response", e);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static PhotoSize readLargest(JsonReader reader) throws IOException {
+        PhotoSize largest = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (!reader.nextName().equals("size")) {
+                reader.skipValue();
+                continue;
+            }
+            reader.beginArray();
+            while (reader.hasNext()) {
+                PhotoSize size = readSize(reader);
+                if (size != null && (largest == null || size.getPixelCount() > largest.getPixelCount())) {
+                    largest = size;
+                }
+            }
+            reader.endArray();
+        }
+        reader.endObject();
+        return largest;
+    }
+
+    private static PhotoSize readSize(JsonReader reader) throws IOException {
+        String source = null;
+        String media = null;
+        int width = 0;
+        int height = 0;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            // Width and height come as numbers or as strings, depending on the size.
+            switch (reader.nextName()) {
+                case "source":
+                    source = nextStringOrNull(reader);
+                    break;
+                case "media":
+                    media = nextStringOrNull(reader);
+                    break;
+                case "width":
+                    width = reader.nextInt();
+                    break;
+                case "height":
+                    height = reader.nextInt();
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (source == null || width <= 0 || height <= 0 || (media != null && !media.equals("photo"))) {
+            return null;
+        }
+        return new PhotoSize(source, width, height);
+    }
+
+    private static String nextStringOrNull(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        return reader.nextString();
+    }
+
+    public PhotoSize(String source, int width, int height) {
+        mSource = source;
+        mWidth = width;
+        mHeight = height;
+    }
+
+    public String getSource() {
+        return mSource;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public long getPixelCount() {
+        return (long) mWidth * mHeight;
+    }
+
+}
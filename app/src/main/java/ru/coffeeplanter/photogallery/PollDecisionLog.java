@@ -0,0 +1,148 @@
+package ru.coffeeplanter.photogallery;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// What the poll scheduler decided and when, kept in a small file so wakeups can be
+// audited afterwards, e.g. with getWakeupsPerHour() or by pulling the file.
+public class PollDecisionLog {
+
+    private static final String TAG = "PollDecisionLog";
+    private static final String FILE_NAME = "poll_decisions.log";
+    private static final int MAX_ENTRIES = 300;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final long AUDIT_PERIOD_MS = TimeUnit.HOURS.toMillis(24);
+
+    // Decisions taken when the alarm went off, i.e. that cost a wakeup of the service.
+    public static final String POLLED_NEW = "polled-new";
+    public static final String POLLED_UNCHANGED = "polled-unchanged";
+    public static final String POLL_FAILED = "poll-failed";
+    public static final String SKIPPED_OFFLINE = "skipped-offline";
+    public static final String SKIPPED_BATTERY = "skipped-battery";
+    // Decisions taken outside of a wakeup.
+    public static final String STARTED = "started";
+    public static final String STOPPED = "stopped";
+    public static final String RESTORED = "restored";
+
+    public static class Entry {
+        public final long mTime;
+        public final String mDecision;
+        public final long mNextIntervalMs;
+
+        public Entry(long time, String decision, long nextIntervalMs) {
+            mTime = time;
+            mDecision = decision;
+            mNextIntervalMs = nextIntervalMs;
+        }
+
+        public boolean isWakeup() {
+            return !STARTED.equals(mDecision) && !STOPPED.equals(mDecision) && !RESTORED.equals(mDecision);
+        }
+
+        @Override
+        public String toString() {
+            return mTime + "\t" + mDecision + "\t" + mNextIntervalMs;
+        }
+    }
+
+    public static synchronized void record(Context context, String decision, long nextIntervalMs) {
+        List<Entry> entries = getEntries(context);
+        entries.add(new Entry(System.currentTimeMillis(), decision, nextIntervalMs));
+        if (entries.size() > MAX_ENTRIES) {
+            entries = entries.subList(entries.size() - MAX_ENTRIES, entries.size());
+        }
+        write(context, entries);
+        Log.i(TAG, String.format("%s, next poll in %d min, %.2f wakeups/hour over the last 24 h",
+                decision, TimeUnit.MILLISECONDS.toMinutes(nextIntervalMs), getWakeupsPerHour(entries)));
+    }
+
+    public static synchronized List<Entry> getEntries(Context context) {
+        List<Entry> entries = new ArrayList<>();
+        File file = getFile(context);
+        if (!file.exists()) {
+            return entries;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split("\t");
+                if (parts.length == 3) {
+                    entries.add(new Entry(Long.parseLong(parts[0]), parts[1], Long.parseLong(parts[2])));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            Log.e(TAG, "Error reading poll decisions", e);
+        } finally {
+            closeQuietly(reader);
+        }
+        return entries;
+    }
+
+    // Service wakeups per hour over the last 24 hours, or since the first entry if that's later.
+    public static float getWakeupsPerHour(Context context) {
+        return getWakeupsPerHour(getEntries(context));
+    }
+
+    static float getWakeupsPerHour(List<Entry> entries) {
+        long now = System.currentTimeMillis();
+        long periodStart = now - AUDIT_PERIOD_MS;
+        int wakeups = 0;
+        long firstTime = now;
+        for (Entry entry : entries) {
+            if (entry.mTime < periodStart) {
+                continue;
+            }
+            firstTime = Math.min(firstTime, entry.mTime);
+            if (entry.isWakeup()) {
+                wakeups++;
+            }
+        }
+        // At least an hour, so a single fresh wakeup doesn't read as hundreds per hour.
+        float hours = Math.max(1f, (now - firstTime) / (float) TimeUnit.HOURS.toMillis(1));
+        return wakeups / hours;
+    }
+
+    private static void write(Context context, List<Entry> entries) {
+        Writer writer = null;
+        try {
+            writer = new OutputStreamWriter(new FileOutputStream(getFile(context)), UTF_8);
+            for (Entry entry : entries) {
+                writer.write(entry + "\n");
+            }
+        } catch (IOException ioe) {
+            Log.e(TAG, "Error writing poll decisions", ioe);
+        } finally {
+            closeQuietly(writer);
+        }
+    }
+
+    private static File getFile(Context context) {
+        return new File(context.getFilesDir(), FILE_NAME);
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+}
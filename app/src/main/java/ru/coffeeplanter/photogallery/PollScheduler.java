@@ -0,0 +1,148 @@
+package ru.coffeeplanter.photogallery;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
+import android.os.SystemClock;
+
+import java.util.concurrent.TimeUnit;
+
+// Decides when PollService runs next. Polls back off exponentially while nothing new
+// turns up and return to the shortest interval once something does. Alarms are
+// inexact and don't wake the device, so the system can batch them with other
+// deferred work. Every decision goes to PollDecisionLog.
+public class PollScheduler {
+
+    static final long MIN_INTERVAL_MS = AlarmManager.INTERVAL_FIFTEEN_MINUTES;
+    static final long MAX_INTERVAL_MS = TimeUnit.HOURS.toMillis(6);
+    private static final int BACKOFF_MULTIPLIER = 2;
+    // Metered networks are polled at most this much more rarely than unmetered ones.
+    private static final int METERED_MULTIPLIER = 2;
+    private static final int LOW_BATTERY_PERCENT = 15;
+    // The alarm may go off anywhere within this fraction of the interval after it's due.
+    private static final float WINDOW_FRACTION = 0.5f;
+
+    public static void start(Context context) {
+        QueryPreferences.setPollInterval(context, MIN_INTERVAL_MS);
+        schedule(context, MIN_INTERVAL_MS);
+        PollDecisionLog.record(context, PollDecisionLog.STARTED, MIN_INTERVAL_MS);
+    }
+
+    public static void stop(Context context) {
+        PendingIntent pi = getPendingIntent(context);
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        alarmManager.cancel(pi);
+        pi.cancel();
+        PollDecisionLog.record(context, PollDecisionLog.STOPPED, 0);
+    }
+
+    // Alarms don't survive a reboot; picks up at the interval polling was at.
+    public static void restore(Context context) {
+        long intervalMs = getInterval(context);
+        schedule(context, intervalMs);
+        PollDecisionLog.record(context, PollDecisionLog.RESTORED, intervalMs);
+    }
+
+    // Called by the service when its alarm went off. Returns whether to poll now;
+    // if not, the next attempt is already scheduled, unless polling has been stopped.
+    public static boolean onAlarm(Context context) {
+        if (!QueryPreferences.isAlarmOn(context)) {
+            return false;
+        }
+        // A fallback until the poll reschedules, so a poll that dies half-way can't end the
+        // chain of alarms.
+        schedule(context, adjustForNetwork(context, nextInterval(getInterval(context))));
+        if (!isConnected(context)) {
+            backOff(context, PollDecisionLog.SKIPPED_OFFLINE);
+            return false;
+        }
+        if (isBatteryLow(context)) {
+            backOff(context, PollDecisionLog.SKIPPED_BATTERY);
+            return false;
+        }
+        return true;
+    }
+
+    // Polling may have been stopped while the poll ran; nothing is scheduled then.
+    public static void onPollFinished(Context context, boolean foundNewResults) {
+        if (!QueryPreferences.isAlarmOn(context)) {
+            return;
+        }
+        if (foundNewResults) {
+            long intervalMs = MIN_INTERVAL_MS;
+            QueryPreferences.setPollInterval(context, intervalMs);
+            schedule(context, adjustForNetwork(context, intervalMs));
+            PollDecisionLog.record(context, PollDecisionLog.POLLED_NEW, intervalMs);
+        } else {
+            backOff(context, PollDecisionLog.POLLED_UNCHANGED);
+        }
+    }
+
+    // The poll itself went wrong, e.g. the server didn't answer; try again as scheduled.
+    public static void onPollFailed(Context context) {
+        if (!QueryPreferences.isAlarmOn(context)) {
+            return;
+        }
+        backOff(context, PollDecisionLog.POLL_FAILED);
+    }
+
+    static long nextInterval(long intervalMs) {
+        return Math.min(MAX_INTERVAL_MS, Math.max(MIN_INTERVAL_MS, intervalMs * BACKOFF_MULTIPLIER));
+    }
+
+    private static void backOff(Context context, String decision) {
+        long intervalMs = nextInterval(getInterval(context));
+        QueryPreferences.setPollInterval(context, intervalMs);
+        schedule(context, adjustForNetwork(context, intervalMs));
+        PollDecisionLog.record(context, decision, intervalMs);
+    }
+
+    private static long getInterval(Context context) {
+        long intervalMs = QueryPreferences.getPollInterval(context);
+        return intervalMs > 0 ? intervalMs : MIN_INTERVAL_MS;
+    }
+
+    private static void schedule(Context context, long intervalMs) {
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        // ELAPSED_REALTIME rather than the _WAKEUP variant: a sleeping device polls once it's
+        // woken up for something else.
+        alarmManager.setWindow(AlarmManager.ELAPSED_REALTIME, SystemClock.elapsedRealtime() + intervalMs,
+                (long) (intervalMs * WINDOW_FRACTION), getPendingIntent(context));
+    }
+
+    private static long adjustForNetwork(Context context, long intervalMs) {
+        ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (cm.isActiveNetworkMetered()) {
+            return Math.min(MAX_INTERVAL_MS, intervalMs * METERED_MULTIPLIER);
+        }
+        return intervalMs;
+    }
+
+    private static boolean isConnected(Context context) {
+        ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo networkInfo = cm.getActiveNetworkInfo();
+        return networkInfo != null && networkInfo.isConnected();
+    }
+
+    private static boolean isBatteryLow(Context context) {
+        // Sticky broadcast, no receiver needed.
+        Intent battery = context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (battery == null) {
+            return false;
+        }
+        boolean plugged = battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+        int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+        return !plugged && level >= 0 && scale > 0 && level * 100 / scale < LOW_BATTERY_PERCENT;
+    }
+
+    static PendingIntent getPendingIntent(Context context) {
+        return PendingIntent.getService(context, 0, PollService.newIntent(context), 0);
+    }
+
+}
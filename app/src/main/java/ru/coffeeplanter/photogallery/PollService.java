@@ -1,29 +1,23 @@
 package ru.coffeeplanter.photogallery;
 
 import android.app.Activity;
-import android.app.AlarmManager;
 import android.app.IntentService;
 import android.app.Notification;
 import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
 import android.content.res.Resources;
-import android.net.ConnectivityManager;
-import android.os.SystemClock;
 import android.support.annotation.Nullable;
 import android.support.v4.app.NotificationManagerCompat;
 import android.support.v4.app.NotificationCompat;
 import android.util.Log;
 
-import java.util.List;
-import java.util.concurrent.TimeUnit;
+import java.io.File;
 
 public class PollService extends IntentService {
 
     private static final String TAG = "PollService";
 
-    private static final long POLL_INTERVAL_MS = TimeUnit.MINUTES.toMillis(1);
-
     public static final String ACTION_SHOW_NOTIFICATION = "ru.coffeeplanter.android.photogallery.SHOW_NOTIFICATION";
 
     public static final String PERM_PRIVATE = "ru.coffeeplanter.android.photogallery.PRIVATE";
@@ -34,19 +28,15 @@ public class PollService extends IntentService {
         return new Intent(context, PollService.class);
     }
 
+    // Each poll schedules the next one through PollScheduler. The preference goes first, so
+    // a poll finishing meanwhile sees that polling has been stopped and doesn't reschedule.
     public static void setServiceAlarm(Context context, boolean isOn) {
-        Intent i = PollService.newIntent(context);
-        PendingIntent pi = PendingIntent.getService(context, 0, i, 0);
-
-        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
-
+        QueryPreferences.setAlarmOn(context, isOn);
         if (isOn) {
-            alarmManager.setRepeating(AlarmManager.ELAPSED_REALTIME, SystemClock.elapsedRealtime(), POLL_INTERVAL_MS, pi);
+            PollScheduler.start(context);
         } else {
-            alarmManager.cancel(pi);
-            pi.cancel();
+            PollScheduler.stop(context);
         }
-        QueryPreferences.setAlarmOn(context, isOn);
     }
 
     public static boolean isServiceAlarmOn(Context context) {
@@ -61,42 +51,69 @@ public class PollService extends IntentService {
 
     @Override
     protected void onHandleIntent(@Nullable Intent intent) {
-        if (!isNetworkAvailableAndConnected()) return;
-        String query = QueryPreferences.getStoredQuery(this);
-        String lastResultId = QueryPreferences.getLastResultId(this);
-        List<GalleryItem> items;
-
-        if (query == null) {
-            items = new FlickrFetchr().fetchRecentPhotos(1);
-        } else {
-            items = new FlickrFetchr().searchPhotos(query, 1);
-        }
-        if (items.size() == 0) return;
-
-        String resultId = items.get(0).getId();
-        if (resultId.equals(lastResultId)) {
-            Log.i(TAG, "Got an old result: " + resultId);
-        } else {
-            Log.i(TAG, "Got a new result: " + resultId);
-
-            Resources resources = getResources();
-            Intent i = PhotoGalleryActivity.newIntent(this);
-            PendingIntent pi = PendingIntent.getActivity(this, 0, i, 0);
-
-            Notification notification = new NotificationCompat.Builder(this)
-                    .setTicker(resources.getString(R.string.new_pictures_title))
-                    .setSmallIcon(android.R.drawable.ic_menu_report_image)
-                    .setContentTitle(resources.getString(R.string.new_pictures_title))
-                    .setContentText(resources.getString(R.string.new_pictures_text))
-                    .setContentIntent(pi)
-                    .setAutoCancel(true)
-                    .build();
-
-            showBackgroundNotification(0, notification);
-
+        if (!PollScheduler.onAlarm(this)) return;
+        boolean rescheduled = false;
+        try {
+            HttpClient.getInstance().setConditionalCacheDirectory(
+                    new File(getCacheDir(), HttpClient.CONDITIONAL_CACHE_DIRECTORY));
+            WatchlistPoller.Result result =
+                    new WatchlistPoller(this).poll(QueryPreferences.getWatchedQueries(this));
+            if (result.isFailed()) {
+                rescheduled = true;
+                PollScheduler.onPollFailed(this);
+                return;
+            }
+
+            int newItemCount = result.getNewItems().size();
+            if (newItemCount == 0) {
+                Log.i(TAG, "No new results");
+            } else {
+                Log.i(TAG, "Got " + newItemCount + " new results");
+
+                Resources resources = getResources();
+                Intent i = PhotoGalleryActivity.newIntent(this);
+                PendingIntent pi = PendingIntent.getActivity(this, 0, i, 0);
+
+                // One notification for the whole watchlist, a line per query that found something.
+                String text = resources.getQuantityString(R.plurals.new_pictures_count, newItemCount, newItemCount);
+                NotificationCompat.InboxStyle style = new NotificationCompat.InboxStyle()
+                        .setBigContentTitle(resources.getString(R.string.new_pictures_title))
+                        .setSummaryText(text);
+                for (WatchlistPoller.QueryResult queryResult : result.getQueryResults()) {
+                    int count = queryResult.getNewItems().size();
+                    if (count > 0) {
+                        String query = queryResult.getQuery();
+                        if (QueryPreferences.RECENT_PHOTOS_QUERY.equals(query)) {
+                            query = resources.getString(R.string.recent_photos);
+                        }
+                        style.addLine(resources.getString(R.string.new_pictures_line, query, count));
+                    }
+                }
+
+                Notification notification = new NotificationCompat.Builder(this)
+                        .setTicker(resources.getString(R.string.new_pictures_title))
+                        .setSmallIcon(android.R.drawable.ic_menu_report_image)
+                        .setContentTitle(resources.getString(R.string.new_pictures_title))
+                        .setContentText(text)
+                        .setNumber(newItemCount)
+                        .setStyle(style)
+                        .setContentIntent(pi)
+                        .setAutoCancel(true)
+                        .build();
+
+                showBackgroundNotification(0, notification);
+
+            }
+
+            rescheduled = true;
+            PollScheduler.onPollFinished(this, newItemCount > 0);
+            Log.i(TAG, "HTTP stats: " + HttpClient.getInstance().getStats());
+        } finally {
+            // The fallback alarm set by onAlarm() stands, but back off as for any failed poll.
+            if (!rescheduled) {
+                PollScheduler.onPollFailed(this);
+            }
         }
-
-        QueryPreferences.setLastResultId(this, resultId);
     }
 
     private void showBackgroundNotification(int requestCode, Notification notification) {
@@ -106,11 +123,4 @@ public class PollService extends IntentService {
         sendOrderedBroadcast(i, PERM_PRIVATE, null, null, Activity.RESULT_OK, null, null);
     }
 
-    private boolean isNetworkAvailableAndConnected() {
-        ConnectivityManager cm = (ConnectivityManager) getSystemService(CONNECTIVITY_SERVICE);
-        boolean isNetworkAvailable = cm.getActiveNetworkInfo() != null;
-        boolean isNetworkConnected = isNetworkAvailable && cm.getActiveNetworkInfo().isConnected();
-        return isNetworkConnected;
-    }
-
 }
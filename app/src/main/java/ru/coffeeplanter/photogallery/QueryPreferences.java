@@ -1,13 +1,24 @@
 package ru.coffeeplanter.photogallery;
 
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.preference.PreferenceManager;
 
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeSet;
+
 public class QueryPreferences {
 
     private static final String PREF_SEARCH_QUERY = "searchQuery";
-    private static final String PREF_LAST_RESULT_ID = "lastResultId";
     private static final String PREF_IS_ALARM_ON = "isAlarmOn";
+    private static final String PREF_POLL_INTERVAL = "pollInterval";
+    private static final String PREF_WATCHED_QUERIES = "watchedQueries";
+
+    // Stands for the recent photos in the watchlist.
+    public static final String RECENT_PHOTOS_QUERY = "";
+    public static final int MAX_WATCHED_QUERIES = 8;
 
     public static String getStoredQuery(Context context) {
         return PreferenceManager.getDefaultSharedPreferences(context)
@@ -21,28 +32,82 @@ public class QueryPreferences {
                 .apply();
     }
 
-    public static String getLastResultId(Context context) {
+    public static boolean isAlarmOn(Context context) {
         return PreferenceManager.getDefaultSharedPreferences(context)
-                .getString(PREF_LAST_RESULT_ID, null);
+                .getBoolean(PREF_IS_ALARM_ON, false);
     }
 
-    public static void setLastResultId(Context context, String lastResultId) {
+    public static void setAlarmOn(Context context, boolean isOn) {
         PreferenceManager.getDefaultSharedPreferences(context)
                 .edit()
-                .putString(PREF_LAST_RESULT_ID, lastResultId)
+                .putBoolean(PREF_IS_ALARM_ON, isOn)
                 .apply();
     }
 
-    public static boolean isAlarmOn(Context context) {
+    public static long getPollInterval(Context context) {
         return PreferenceManager.getDefaultSharedPreferences(context)
-                .getBoolean(PREF_IS_ALARM_ON, false);
+                .getLong(PREF_POLL_INTERVAL, 0);
     }
 
-    public static void setAlarmOn(Context context, boolean isOn) {
+    public static void setPollInterval(Context context, long intervalMs) {
         PreferenceManager.getDefaultSharedPreferences(context)
                 .edit()
-                .putBoolean(PREF_IS_ALARM_ON, isOn)
+                .putLong(PREF_POLL_INTERVAL, intervalMs)
                 .apply();
     }
 
+    // Queries the background poll watches, sorted. The first time it's asked for, the
+    // watchlist starts out with the query shown at that moment.
+    public static Set<String> getWatchedQueries(Context context) {
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        if (!preferences.contains(PREF_WATCHED_QUERIES)) {
+            Set<String> queries = Collections.singleton(toWatchedQuery(getStoredQuery(context)));
+            setWatchedQueries(context, queries);
+            return new TreeSet<>(queries);
+        }
+        return new TreeSet<>(preferences.getStringSet(PREF_WATCHED_QUERIES, Collections.<String>emptySet()));
+    }
+
+    public static void setWatchedQueries(Context context, Set<String> queries) {
+        PreferenceManager.getDefaultSharedPreferences(context)
+                .edit()
+                .putStringSet(PREF_WATCHED_QUERIES, new HashSet<>(queries))
+                .apply();
+    }
+
+    // Queries are matched the way GalleryStore keys them, i.e. ignoring case.
+    public static boolean isQueryWatched(Context context, String query) {
+        return findWatchedQuery(getWatchedQueries(context), query) != null;
+    }
+
+    // Returns false if the query should be watched but the watchlist is full.
+    public static boolean setQueryWatched(Context context, String query, boolean isWatched) {
+        Set<String> queries = getWatchedQueries(context);
+        String watchedQuery = findWatchedQuery(queries, query);
+        if (isWatched && watchedQuery == null) {
+            if (queries.size() >= MAX_WATCHED_QUERIES) {
+                return false;
+            }
+            queries.add(toWatchedQuery(query));
+        } else if (!isWatched && watchedQuery != null) {
+            queries.remove(watchedQuery);
+        }
+        setWatchedQueries(context, queries);
+        return true;
+    }
+
+    private static String findWatchedQuery(Set<String> queries, String query) {
+        String queryKey = GalleryStore.getQueryKey(query);
+        for (String watchedQuery : queries) {
+            if (GalleryStore.getQueryKey(watchedQuery).equals(queryKey)) {
+                return watchedQuery;
+            }
+        }
+        return null;
+    }
+
+    private static String toWatchedQuery(String query) {
+        return query != null ? query.trim() : RECENT_PHOTOS_QUERY;
+    }
+
 }
@@ -0,0 +1,67 @@
+package ru.coffeeplanter.photogallery;
+
+import android.os.Handler;
+
+// Turns keystrokes in the search field into searches. A search starts once typing has
+// paused for DEBOUNCE_MS, and only if the text is long enough to be worth a request
+// and differs from the last text searched for. Main thread only.
+public class SearchDebouncer {
+
+    static final long DEBOUNCE_MS = 250;
+    static final int MIN_QUERY_LENGTH = 2;
+
+    private final Handler mHandler;
+    private final Listener mListener;
+    private String mPendingQuery;
+    private String mLastQueryKey;
+    private int mKeystrokeCount = 0;
+    private int mSearchCount = 0;
+
+    public interface Listener {
+        void onSearch(String query);
+    }
+
+    private final Runnable mSearchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            String query = mPendingQuery;
+            mPendingQuery = null;
+            mLastQueryKey = GalleryStore.getQueryKey(query);
+            mSearchCount++;
+            mListener.onSearch(query);
+        }
+    };
+
+    public SearchDebouncer(Handler handler, Listener listener) {
+        mHandler = handler;
+        mListener = listener;
+    }
+
+    public void onTextChanged(String text) {
+        mKeystrokeCount++;
+        mHandler.removeCallbacks(mSearchRunnable);
+        mPendingQuery = null;
+        String query = text.trim();
+        if (query.length() < MIN_QUERY_LENGTH || GalleryStore.getQueryKey(query).equals(mLastQueryKey)) {
+            return;
+        }
+        mPendingQuery = query;
+        mHandler.postDelayed(mSearchRunnable, DEBOUNCE_MS);
+    }
+
+    // The query was searched for some other way, e.g. submitted or restored.
+    public void onSearched(String query) {
+        cancel();
+        mLastQueryKey = GalleryStore.getQueryKey(query);
+    }
+
+    public void cancel() {
+        mHandler.removeCallbacks(mSearchRunnable);
+        mPendingQuery = null;
+    }
+
+    public String getStats() {
+        return "SearchDebouncer[keystrokes=" + mKeystrokeCount + ", searches=" + mSearchCount + "]";
+    }
+
+}
@@ -0,0 +1,190 @@
+package ru.coffeeplanter.photogallery;
+
+import android.content.Context;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Parsed gallery pages by query key and page number: an LRU in memory, bounded by item
+// count, in front of GalleryStore on disk, which drops the least recently used queries
+// beyond a query and an item count. Pages read from the disk count as used there; memory
+// hits don't, they would cost a write on the main thread. Pages younger than FRESH_MS can be shown as
+// they are. Older ones are still served, so a recent query shows up at once, and the
+// caller refetches them in the background (stale-while-revalidate). Pages older than
+// MAX_STALE_MS are not served at all.
+public class SearchResultCache {
+
+    static final long FRESH_MS = TimeUnit.MINUTES.toMillis(5);
+    static final long MAX_STALE_MS = TimeUnit.DAYS.toMillis(1);
+    private static final int MAX_MEMORY_ITEMS = 2000;
+    private static final String KEY_SEPARATOR = "\n";
+
+    private static SearchResultCache sSearchResultCache;
+
+    private final GalleryStore mGalleryStore;
+    // Guarded by this. In access order, least recently used first.
+    private final LinkedHashMap<String, PhotoListPage> mMemoryPages = new LinkedHashMap<>(0, 0.75f, true);
+    private int mMemoryItemCount = 0;
+    private int mMemoryHitCount = 0;
+    private int mDiskHitCount = 0;
+    private int mMissCount = 0;
+
+    public static synchronized SearchResultCache get(Context context) {
+        if (sSearchResultCache == null) {
+            sSearchResultCache = new SearchResultCache(GalleryStore.get(context));
+        }
+        return sSearchResultCache;
+    }
+
+    private SearchResultCache(GalleryStore galleryStore) {
+        mGalleryStore = galleryStore;
+    }
+
+    public static boolean isFresh(PhotoListPage page) {
+        return System.currentTimeMillis() - page.getFetchedAt() < FRESH_MS;
+    }
+
+    private static boolean isServable(PhotoListPage page) {
+        return System.currentTimeMillis() - page.getFetchedAt() < MAX_STALE_MS;
+    }
+
+    // The leading pages held in memory, see GalleryStore.getLeadingPages(). Doesn't touch
+    // the disk, so it can be called on the main thread.
+    public synchronized List<PhotoListPage> getLeadingPagesFromMemory(String queryKey, int maxPages) {
+        List<PhotoListPage> pages = new ArrayList<>();
+        for (int page = 1; page <= maxPages; page++) {
+            PhotoListPage photoListPage = getFromMemory(queryKey, page);
+            if (photoListPage == null) {
+                break;
+            }
+            pages.add(photoListPage);
+        }
+        return pages;
+    }
+
+    // Key of the longest shorter query that the given one starts with and whose first page
+    // is in memory, or null. Lets results for "cat" stand in while "cats" loads.
+    public synchronized String findPrefixKeyInMemory(String query) {
+        if (query == null) {
+            return null;
+        }
+        String trimmedQuery = query.trim();
+        for (int length = trimmedQuery.length() - 1; length > 0; length--) {
+            String prefixKey = GalleryStore.getQueryKey(trimmedQuery.substring(0, length));
+            if (getFromMemory(prefixKey, 1) != null) {
+                return prefixKey;
+            }
+        }
+        return null;
+    }
+
+    // Like getLeadingPagesFromMemory(), going to the disk for what isn't in memory.
+    // Worker threads only.
+    public List<PhotoListPage> getLeadingPages(String queryKey, int maxPages) {
+        List<PhotoListPage> pages = new ArrayList<>();
+        for (int page = 1; page <= maxPages; page++) {
+            PhotoListPage photoListPage = getPage(queryKey, page);
+            if (photoListPage == null) {
+                break;
+            }
+            pages.add(photoListPage);
+        }
+        return pages;
+    }
+
+    // Returns null if the page isn't stored or is too old to be served. Worker threads only.
+    public PhotoListPage getPage(String queryKey, int page) {
+        synchronized (this) {
+            PhotoListPage photoListPage = getFromMemory(queryKey, page);
+            if (photoListPage != null) {
+                return photoListPage;
+            }
+        }
+        PhotoListPage photoListPage = mGalleryStore.getPage(queryKey, page);
+        synchronized (this) {
+            if (photoListPage == null || !isServable(photoListPage)) {
+                mMissCount++;
+                return null;
+            }
+            mDiskHitCount++;
+            putInMemory(queryKey, photoListPage);
+        }
+        mGalleryStore.markUsed(queryKey);
+        return photoListPage;
+    }
+
+    // Stores a fetched page at both levels; returns whether it differs from the stored one,
+    // see GalleryStore.putPage(). Worker threads only.
+    public boolean put(String queryKey, PhotoListPage page) {
+        boolean changed = mGalleryStore.putPage(queryKey, page);
+        synchronized (this) {
+            if (changed && page.getPage() == 1) {
+                // The later pages have shifted and were dropped from the store as well.
+                removeFromMemory(queryKey);
+            }
+            putInMemory(queryKey, page);
+        }
+        return changed;
+    }
+
+    public synchronized String getStats() {
+        return String.format("SearchResultCache[pages=%d, items=%d/%d, memoryHits=%d, diskHits=%d, misses=%d]",
+                mMemoryPages.size(), mMemoryItemCount, MAX_MEMORY_ITEMS, mMemoryHitCount, mDiskHitCount,
+                mMissCount);
+    }
+
+    private PhotoListPage getFromMemory(String queryKey, int page) {
+        String key = keyFor(queryKey, page);
+        PhotoListPage photoListPage = mMemoryPages.get(key);
+        if (photoListPage == null) {
+            return null;
+        }
+        if (!isServable(photoListPage)) {
+            mMemoryPages.remove(key);
+            mMemoryItemCount -= photoListPage.getItems().size();
+            return null;
+        }
+        mMemoryHitCount++;
+        return photoListPage;
+    }
+
+    private void putInMemory(String queryKey, PhotoListPage page) {
+        PhotoListPage previous = mMemoryPages.put(keyFor(queryKey, page.getPage()), page);
+        if (previous != null) {
+            mMemoryItemCount -= previous.getItems().size();
+        }
+        mMemoryItemCount += page.getItems().size();
+        Iterator<PhotoListPage> it = mMemoryPages.values().iterator();
+        while (mMemoryItemCount > MAX_MEMORY_ITEMS && it.hasNext()) {
+            PhotoListPage eldest = it.next();
+            if (eldest == page) {
+                // The page just put is the last one; it stays even if it's too big alone.
+                break;
+            }
+            it.remove();
+            mMemoryItemCount -= eldest.getItems().size();
+        }
+    }
+
+    private void removeFromMemory(String queryKey) {
+        String prefix = queryKey + KEY_SEPARATOR;
+        Iterator<Map.Entry<String, PhotoListPage>> it = mMemoryPages.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, PhotoListPage> entry = it.next();
+            if (entry.getKey().startsWith(prefix)) {
+                mMemoryItemCount -= entry.getValue().getItems().size();
+                it.remove();
+            }
+        }
+    }
+
+    // Queries come from a single-line search field, so they never contain a line break.
+    private static String keyFor(String queryKey, int page) {
+        return queryKey + KEY_SEPARATOR + page;
+    }
+
+}
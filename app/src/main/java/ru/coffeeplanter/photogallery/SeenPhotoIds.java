@@ -0,0 +1,111 @@
+package ru.coffeeplanter.photogallery;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// Ids of the photos a background poll has already seen for one query, kept as a sorted
+// long array so it stays small on disk and lookups are a binary search. Beyond the
+// capacity the lowest ids go first; Flickr hands out ids in upload order, so these
+// are the oldest photos, the least likely to come back to the top of a result.
+public class SeenPhotoIds {
+
+    public static final int DEFAULT_CAPACITY = 1000;
+
+    private final int mCapacity;
+    private long[] mIds;
+    private int mSize;
+
+    public SeenPhotoIds(int capacity) {
+        mCapacity = capacity;
+        mIds = new long[0];
+        mSize = 0;
+    }
+
+    // Reads what toBytes() wrote; anything that doesn't look like it gives an empty set.
+    public static SeenPhotoIds fromBytes(byte[] bytes, int capacity) {
+        SeenPhotoIds seenIds = new SeenPhotoIds(capacity);
+        if (bytes == null || bytes.length % 8 != 0) {
+            return seenIds;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        long[] ids = new long[bytes.length / 8];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = buffer.getLong();
+        }
+        Arrays.sort(ids);
+        seenIds.mIds = ids;
+        seenIds.mSize = ids.length;
+        seenIds.trim();
+        return seenIds;
+    }
+
+    public byte[] toBytes() {
+        ByteBuffer buffer = ByteBuffer.allocate(mSize * 8);
+        for (int i = 0; i < mSize; i++) {
+            buffer.putLong(mIds[i]);
+        }
+        return buffer.array();
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    public boolean contains(long id) {
+        return Arrays.binarySearch(mIds, 0, mSize, id) >= 0;
+    }
+
+    // Items whose ids haven't been seen yet, in their original order, each id once.
+    // Items without a numeric id can't be tracked and are left out.
+    public List<GalleryItem> getUnseen(List<GalleryItem> items) {
+        List<GalleryItem> unseen = new ArrayList<>();
+        Set<Long> unseenIds = new HashSet<>();
+        for (GalleryItem item : items) {
+            long id = item.getNumericId();
+            if (id >= 0 && !contains(id) && unseenIds.add(id)) {
+                unseen.add(item);
+            }
+        }
+        return unseen;
+    }
+
+    public void addAll(List<GalleryItem> items) {
+        long[] ids = Arrays.copyOf(mIds, mSize + items.size());
+        int size = mSize;
+        for (GalleryItem item : items) {
+            long id = item.getNumericId();
+            if (id >= 0) {
+                ids[size++] = id;
+            }
+        }
+        Arrays.sort(ids, 0, size);
+        // Drop the duplicates in place.
+        int unique = 0;
+        for (int i = 0; i < size; i++) {
+            if (unique == 0 || ids[i] != ids[unique - 1]) {
+                ids[unique++] = ids[i];
+            }
+        }
+        mIds = ids;
+        mSize = unique;
+        trim();
+    }
+
+    private void trim() {
+        if (mSize > mCapacity) {
+            mIds = Arrays.copyOfRange(mIds, mSize - mCapacity, mSize);
+            mSize = mCapacity;
+        } else if (mIds.length > mSize) {
+            mIds = Arrays.copyOf(mIds, mSize);
+        }
+    }
+
+}
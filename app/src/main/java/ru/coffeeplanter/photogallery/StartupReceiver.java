@@ -12,8 +12,9 @@ public class StartupReceiver extends BroadcastReceiver {
     @Override
     public void onReceive(Context context, Intent intent) {
         Log.i(TAG, "Received broadcast intent: " + intent.getAction());
-        boolean isOn = QueryPreferences.isAlarmOn(context);
-        PollService.setServiceAlarm(context, isOn);
+        if (QueryPreferences.isAlarmOn(context)) {
+            PollScheduler.restore(context);
+        }
     }
 
 }
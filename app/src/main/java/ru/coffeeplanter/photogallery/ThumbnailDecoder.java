@@ -0,0 +1,121 @@
+package ru.coffeeplanter.photogallery;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+// Decodes thumbnails straight to the size they are displayed at.
+public class ThumbnailDecoder {
+
+    private static final int DENSITY_PRECISION = 10000;
+    private static final String MIME_TYPE_JPEG = "image/jpeg";
+
+    private ThumbnailDecoder() {
+    }
+
+    // Something that can be read from the start more than once: decoding takes a bounds-only
+    // pass before the real one.
+    public interface StreamSource {
+        InputStream open() throws IOException;
+    }
+
+    // Returns null if the data can't be decoded. A zero target size decodes at full resolution.
+    // When a pool is given, the decode reuses one of its bitmaps if a fitting one is there.
+    public static Bitmap decode(final byte[] data, int reqWidth, int reqHeight, boolean opaqueAsRgb565,
+                                BitmapPool bitmapPool) {
+        StreamSource source = new StreamSource() {
+            @Override
+            public InputStream open() {
+                return new ByteArrayInputStream(data);
+            }
+        };
+        try {
+            return decode(source, reqWidth, reqHeight, opaqueAsRgb565, bitmapPool, null);
+        } catch (IOException ioe) {
+            throw new AssertionError(ioe);
+        }
+    }
+
+    // tempStorage, if given, is the decoder's scratch buffer (16K is what BitmapFactory uses).
+    public static Bitmap decode(StreamSource source, int reqWidth, int reqHeight, boolean opaqueAsRgb565,
+                                BitmapPool bitmapPool, byte[] tempStorage) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inTempStorage = tempStorage;
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeStream(source.open(), null, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        configure(options, reqWidth, reqHeight, opaqueAsRgb565);
+        if (bitmapPool == null) {
+            return BitmapFactory.decodeStream(source.open(), null, options);
+        }
+        // Bitmaps have to be mutable to be reused later on.
+        options.inMutable = true;
+        options.inBitmap = getReusableBitmap(options, bitmapPool);
+        try {
+            return BitmapFactory.decodeStream(source.open(), null, options);
+        } catch (IllegalArgumentException iae) {
+            if (options.inBitmap == null) {
+                // Nothing was reused, so the data itself is the problem.
+                throw iae;
+            }
+            // The pooled bitmap didn't fit after all, give it back and decode into a new one.
+            bitmapPool.recycleWhenUnused(options.inBitmap);
+            options.inBitmap = null;
+            return BitmapFactory.decodeStream(source.open(), null, options);
+        }
+    }
+
+    // Turns options filled in by a bounds-only decode into options for the real one.
+    static void configure(BitmapFactory.Options options, int reqWidth, int reqHeight, boolean opaqueAsRgb565) {
+        int width = options.outWidth;
+        int height = options.outHeight;
+        options.inJustDecodeBounds = false;
+        // JPEGs have no alpha channel, so half the bytes per pixel lose nothing.
+        if (opaqueAsRgb565 && MIME_TYPE_JPEG.equals(options.outMimeType)) {
+            options.inPreferredConfig = Bitmap.Config.RGB_565;
+        }
+        if (reqWidth <= 0 || reqHeight <= 0) {
+            return;
+        }
+        options.inSampleSize = calculateInSampleSize(width, height, reqWidth, reqHeight);
+        // Sampling only goes in powers of two, scale the rest of the way down while decoding.
+        int sampledWidth = width / options.inSampleSize;
+        int sampledHeight = height / options.inSampleSize;
+        float scale = Math.max((float) reqWidth / sampledWidth, (float) reqHeight / sampledHeight);
+        if (scale < 1f) {
+            options.inScaled = true;
+            options.inDensity = DENSITY_PRECISION;
+            options.inTargetDensity = Math.round(scale * DENSITY_PRECISION);
+        }
+    }
+
+    private static Bitmap getReusableBitmap(BitmapFactory.Options options, BitmapPool bitmapPool) {
+        int sampleSize = Math.max(1, options.inSampleSize);
+        int width = (options.outWidth + sampleSize - 1) / sampleSize;
+        int height = (options.outHeight + sampleSize - 1) / sampleSize;
+        if (options.inScaled && options.inDensity > 0 && options.inTargetDensity > 0) {
+            float scale = (float) options.inTargetDensity / options.inDensity;
+            width = (int) (width * scale + 0.5f);
+            height = (int) (height * scale + 0.5f);
+        }
+        Bitmap.Config config = options.inPreferredConfig != null
+                ? options.inPreferredConfig : Bitmap.Config.ARGB_8888;
+        return bitmapPool.get(width, height, config);
+    }
+
+    // Largest power of two that keeps both sides at least as big as requested, since the grid
+    // crops the image to fill the cell.
+    static int calculateInSampleSize(int width, int height, int reqWidth, int reqHeight) {
+        int inSampleSize = 1;
+        while (width / (inSampleSize * 2) >= reqWidth && height / (inSampleSize * 2) >= reqHeight) {
+            inSampleSize *= 2;
+        }
+        return inSampleSize;
+    }
+
+}
@@ -1,32 +1,84 @@
 package ru.coffeeplanter.photogallery;
 
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.os.Handler;
-import android.os.HandlerThread;
-import android.os.Message;
-import android.support.v4.util.LruCache;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
-public class ThumbnailDownloader<T> extends HandlerThread {
+public class ThumbnailDownloader<T> {
 
     private static final String TAG = "ThumbnailDownloader";
-    private static final int MESSAGE_DOWNLOAD = 0;
-    private final int MAX_BITMAPS_IN_CACHE = 100;
+    public static final String DISK_CACHE_DIRECTORY = "thumbnails";
+    static final long DISK_CACHE_SIZE = 20 * 1024 * 1024;
+    // Downloads are network-bound, so more of them can run than there are cores.
+    private static final int DOWNLOAD_THREAD_COUNT = 4;
+    // Decoding is CPU-bound, leave a core for the UI thread.
+    private static final int DECODE_THREAD_COUNT =
+            Math.max(1, Math.min(2, Runtime.getRuntime().availableProcessors() - 1));
+    // Positions behind the scroll direction are only fetched after everything ahead of it.
+    private static final int BEHIND_VIEWPORT_PENALTY = 10000;
+    private static final boolean DECODE_OPAQUE_AS_RGB_565 = true;
+    // The reuse pool gets a quarter of the memory cache budget on top of it.
+    private static final int BITMAP_POOL_DIVIDER = 4;
+    private static final int DECODE_BUFFER_SIZE = 16 * 1024;
+    // Assumed before the first download has been timed.
+    private static final float DEFAULT_THROUGHPUT = 10f;
+    private static final float DOWNLOAD_TIME_SMOOTHING = 0.2f;
+    private static final int BUFFER_POOL_SIZE = (DOWNLOAD_THREAD_COUNT + DECODE_THREAD_COUNT) * 2 * DECODE_BUFFER_SIZE;
 
-    private boolean mHasQuit = false;
-    private Handler mRequestHandler;
-    private Handler mPreloadHandler;
+    private volatile boolean mHasQuit = false;
+    private ThreadPoolExecutor mDownloadExecutor;
+    private ThreadPoolExecutor mDecodeExecutor;
     private ConcurrentMap<T, String> mRequestMap = new ConcurrentHashMap<>();
     private Handler mResponseHandler;
     private ThumbnailDownloadListener<T> mThumbnailDownloadListener;
-    private LruCache<String, Bitmap> mMemoryCache;
+    private BitmapMemoryCache mMemoryCache;
+    private BitmapPool mBitmapPool;
+    private final ByteArrayPool mBufferPool = new ByteArrayPool(BUFFER_POOL_SIZE);
+    private File mDiskCacheDirectory;
+    private DiskCache mDiskCache;
+    private boolean mDiskCacheOpened = false;
+    private final AtomicLong mTaskSequence = new AtomicLong();
+    private final Map<String, DownloadTask> mInFlight = new HashMap<>();
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+    private final AtomicInteger mCoalescedRequestCount = new AtomicInteger();
+    private final AtomicInteger mCompletedCount = new AtomicInteger();
+    private final AtomicInteger mCancelledCount = new AtomicInteger();
+    private final Object mViewportLock = new Object();
+    private int mFirstVisiblePosition = 0;
+    private int mLastVisiblePosition = 0;
+    private int mScrollDirection = 1;
+    private volatile int mTargetWidth = 0;
+    private volatile int mTargetHeight = 0;
+    private volatile float mAverageDownloadMs = 0f;
 
+    // The delivered bitmap is referenced on behalf of the target until it's handed back through
+    // releaseBitmap(), so it won't be reused for another decode while it is on screen.
     public interface ThumbnailDownloadListener<T> {
         void onThumbnailDownloaded(T target, Bitmap thumbnail);
     }
@@ -35,116 +87,616 @@ public class ThumbnailDownloader<T> extends HandlerThread {
         mThumbnailDownloadListener = listener;
     }
 
-    public ThumbnailDownloader(Handler responseHandler) {
-        super(TAG);
+    public ThumbnailDownloader(Handler responseHandler, File diskCacheDirectory, int memoryCacheSizeBytes) {
         mResponseHandler = responseHandler;
-        mMemoryCache = new LruCache<String, Bitmap>(MAX_BITMAPS_IN_CACHE) {
-            @Override
-            protected int sizeOf(String key, Bitmap value) {
-                return 1;
-            }
-        };
+        mDiskCacheDirectory = diskCacheDirectory;
+        mMemoryCache = new BitmapMemoryCache(memoryCacheSizeBytes);
+        mBitmapPool = new BitmapPool(memoryCacheSizeBytes / BITMAP_POOL_DIVIDER);
+        mMemoryCache.setBitmapPool(mBitmapPool);
     }
 
-    @Override
-    protected void onLooperPrepared() {
-        mRequestHandler = new Handler() {
-            @Override
-            public void handleMessage(Message msg) {
-                if (msg.what == MESSAGE_DOWNLOAD) {
-                    T target = (T) msg.obj;
-                    Log.i(TAG, "Got a request for URL: " + mRequestMap.get(target));
-                    handleRequest(target);
-                }
-            }
-        };
-        mPreloadHandler = new Handler() {
-            @Override
-            public void handleMessage(Message msg) {
-                if (msg.what == MESSAGE_DOWNLOAD) {
-                    String target = (String) msg.obj;
-                    preloadImages(target);
+    public void start() {
+        mDownloadExecutor = newWorkerPool("ThumbnailDownload", DOWNLOAD_THREAD_COUNT,
+                new PriorityBlockingQueue<Runnable>(), new ThreadPoolExecutor.DiscardPolicy());
+        // Re-ranking puts tasks straight back into the queue, so workers must already be running.
+        mDownloadExecutor.prestartAllCoreThreads();
+        mDecodeExecutor = newWorkerPool("ThumbnailDecode", DECODE_THREAD_COUNT,
+                new LinkedBlockingQueue<Runnable>(), new RejectedExecutionHandler() {
+                    @Override
+                    public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                        // Only once quit() has shut the pool down; the cached file must still be closed.
+                        ((DecodeTask) r).discard();
+                    }
+                });
+    }
+
+    public void quit() {
+        mHasQuit = true;
+        mDownloadExecutor.shutdownNow();
+        mDecodeExecutor.shutdownNow();
+        Log.i(TAG, "Requests: " + mRequestCount.get() + ", coalesced into in-flight downloads: "
+                + mCoalescedRequestCount.get());
+        Log.i(TAG, "Downloads completed: " + mCompletedCount.get() + ", cancelled: " + mCancelledCount.get());
+        Log.i(TAG, "Memory cache stats: " + mMemoryCache.getStats());
+        Log.i(TAG, "Bitmap pool stats: " + mBitmapPool.getStats());
+        mBitmapPool.clear();
+        synchronized (this) {
+            if (mDiskCache != null) {
+                Log.i(TAG, "Disk cache stats: " + mDiskCache);
+                try {
+                    DiskCache.release(mDiskCache);
+                } catch (IOException ioe) {
+                    Log.e(TAG, "Error closing disk cache", ioe);
                 }
             }
-        };
+        }
     }
 
-    @Override
-    public boolean quit() {
-        mHasQuit = true;
-        return super.quit();
+    // Size of the cell thumbnails are shown in; decoded bitmaps are cached at this size.
+    public void setTargetSize(int width, int height) {
+        mTargetWidth = width;
+        mTargetHeight = height;
     }
 
-    public void queueThumbnail(T target, String url) {
+    public void queueThumbnail(T target, String url, int position) {
         Log.i(TAG, "Got a URL: " + url);
+        String previousUrl;
         if (url == null) {
-            mRequestMap.remove(target);
+            previousUrl = mRequestMap.remove(target);
         } else {
-            mRequestMap.put(target, url);
-            mRequestHandler.obtainMessage(MESSAGE_DOWNLOAD, target).sendToTarget();
+            previousUrl = mRequestMap.put(target, url);
+            request(target, url, position);
+        }
+        if (previousUrl != null && !previousUrl.equals(url)) {
+            cancelIfUnwanted(previousUrl);
         }
     }
 
-    public void loadCache(List<GalleryItem> items) {
-        for (GalleryItem item : items) {
-            mPreloadHandler.obtainMessage(MESSAGE_DOWNLOAD, item.getUrl()).sendToTarget();
+    // The target no longer needs its thumbnail, e.g. its view was recycled.
+    public void cancelThumbnail(T target) {
+        String url = mRequestMap.remove(target);
+        if (url != null) {
+            cancelIfUnwanted(url);
+        }
+    }
+
+    // Items are expected to be consecutive adapter positions starting at firstPosition.
+    // Null items, positions whose page isn't loaded, are skipped.
+    public void loadCache(List<GalleryItem> items, int firstPosition) {
+        for (int i = 0; i < items.size(); i++) {
+            GalleryItem item = items.get(i);
+            String url = item != null ? item.getUrl() : null;
+            if (url != null) {
+                request(null, url, firstPosition + i);
+            }
         }
         Log.i(TAG,"Cache preloaded");
     }
 
+    // Called on every scroll frame, but queued work is only re-ranked when the visible range or
+    // the scroll direction changes, once per row crossed. A frame that didn't move vertically
+    // keeps the direction it had.
+    public void setViewport(int firstVisiblePosition, int lastVisiblePosition, int scrollDirection) {
+        synchronized (mViewportLock) {
+            int direction = scrollDirection == 0 ? mScrollDirection : (scrollDirection < 0 ? -1 : 1);
+            if (firstVisiblePosition == mFirstVisiblePosition
+                    && lastVisiblePosition == mLastVisiblePosition
+                    && direction == mScrollDirection) {
+                return;
+            }
+            mFirstVisiblePosition = firstVisiblePosition;
+            mLastVisiblePosition = lastVisiblePosition;
+            mScrollDirection = direction;
+        }
+        synchronized (mInFlight) {
+            BlockingQueue<Runnable> queue = mDownloadExecutor.getQueue();
+            if (queue.isEmpty()) {
+                return;
+            }
+            List<Runnable> queuedTasks = new ArrayList<>(queue.size());
+            queue.drainTo(queuedTasks);
+            for (Runnable task : queuedTasks) {
+                ((DownloadTask) task).updatePriority();
+            }
+            queue.addAll(queuedTasks);
+        }
+    }
+
     public void clearQueue() {
-        mRequestHandler.removeMessages(MESSAGE_DOWNLOAD);
         mRequestMap.clear();
+        removeUnwantedTasks(false);
+        // Downloads already running for the cleared targets are aborted as well.
+        synchronized (mInFlight) {
+            for (DownloadTask task : new ArrayList<>(mInFlight.values())) {
+                if (!task.isWanted()) {
+                    cancel(task);
+                }
+            }
+        }
     }
 
     public void clearPreloadQueue() {
-        mPreloadHandler.removeMessages(MESSAGE_DOWNLOAD);
+        removeUnwantedTasks(true);
     }
 
-    private void handleRequest(final T target) {
-        try {
-            final String url = mRequestMap.get(target);
-            if (url == null) {
+    public void releaseBitmap(Bitmap bitmap) {
+        mBitmapPool.release(bitmap);
+    }
+
+    public int getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    public int getCoalescedRequestCount() {
+        return mCoalescedRequestCount.get();
+    }
+
+    // Thumbnails per second the network workers can fetch together, from recent download times.
+    public float getThroughput() {
+        float averageDownloadMs = mAverageDownloadMs;
+        if (averageDownloadMs <= 0f) {
+            return DEFAULT_THROUGHPUT;
+        }
+        return DOWNLOAD_THREAD_COUNT * 1000f / averageDownloadMs;
+    }
+
+    public int getCompletedDownloadCount() {
+        return mCompletedCount.get();
+    }
+
+    public int getCancelledDownloadCount() {
+        return mCancelledCount.get();
+    }
+
+    private void cancelIfUnwanted(String url) {
+        synchronized (mInFlight) {
+            DownloadTask task = mInFlight.get(url);
+            if (task != null && !task.isWanted()) {
+                cancel(task);
+            }
+        }
+    }
+
+    // Drops the task if it's still queued, otherwise aborts its network read or skips its decode.
+    private void cancel(DownloadTask task) {
+        synchronized (mInFlight) {
+            if (mInFlight.get(task.mUrl) == task) {
+                mInFlight.remove(task.mUrl);
+            }
+            mDownloadExecutor.getQueue().remove(task);
+        }
+        task.cancel();
+        mCancelledCount.incrementAndGet();
+    }
+
+    // Requests for a URL that is already queued or loading attach to that download
+    // instead of starting another one; every requester gets the result.
+    private void request(T target, String url, int position) {
+        mRequestCount.incrementAndGet();
+        DownloadTask task;
+        synchronized (mInFlight) {
+            task = mInFlight.get(url);
+            if (task != null) {
+                mCoalescedRequestCount.incrementAndGet();
+                // The queue is ordered by priority, so a queued task is taken out while its
+                // priority changes, in either direction, and put back in its new place.
+                boolean queued = mDownloadExecutor.getQueue().remove(task);
+                task.attach(target, position);
+                if (queued) {
+                    mDownloadExecutor.getQueue().add(task);
+                }
                 return;
             }
-            final Bitmap bitmap = getBitmap(url);
-            mResponseHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    if ((mRequestMap.get(target) != null) && (!mRequestMap.get(target).equals(url) || mHasQuit)) {
-                        return;
-                    }
-                    mRequestMap.remove(target);
-                    mThumbnailDownloadListener.onThumbnailDownloaded(target, bitmap);
+            task = new DownloadTask(url, position);
+            task.attach(target, position);
+            mInFlight.put(url, task);
+        }
+        mDownloadExecutor.execute(task);
+    }
+
+    private void finish(DownloadTask task, Bitmap bitmap) {
+        List<T> targets;
+        synchronized (mInFlight) {
+            // A cancelled task may already have been replaced by a new one for the same URL.
+            if (mInFlight.get(task.mUrl) == task) {
+                mInFlight.remove(task.mUrl);
+            }
+            targets = new ArrayList<>(task.mTargets);
+        }
+        if (bitmap == null) {
+            return;
+        }
+        mCompletedCount.incrementAndGet();
+        for (T target : targets) {
+            if (!isStale(target, task.mUrl)) {
+                deliver(target, task.mUrl, bitmap);
+            }
+        }
+    }
+
+    private void removeUnwantedTasks(boolean clearPreloads) {
+        synchronized (mInFlight) {
+            Iterator<Runnable> it = mDownloadExecutor.getQueue().iterator();
+            while (it.hasNext()) {
+                DownloadTask task = (DownloadTask) it.next();
+                if (clearPreloads) {
+                    task.mPreload = false;
+                }
+                if (!task.isWanted()) {
+                    it.remove();
+                    mInFlight.remove(task.mUrl);
+                    mCancelledCount.incrementAndGet();
                 }
-            });
-        } catch (IOException ioe) {
-            Log.e(TAG, "Error downloading image", ioe);
+            }
         }
     }
 
-    private void preloadImages(String target) {
-        if (target ==  null) {
+    // Visible requests are dropped as soon as their target has been rebound to another URL.
+    private boolean isStale(T target, String url) {
+        return mHasQuit || (target != null && !url.equals(mRequestMap.get(target)));
+    }
+
+    private void deliver(final T target, final String url, final Bitmap bitmap) {
+        if (target == null) {
             return;
         }
+        mBitmapPool.acquire(bitmap);
+        mResponseHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if ((mRequestMap.get(target) != null) && (!mRequestMap.get(target).equals(url) || mHasQuit)) {
+                    mBitmapPool.release(bitmap);
+                    return;
+                }
+                mRequestMap.remove(target);
+                mThumbnailDownloadListener.onThumbnailDownloaded(target, bitmap);
+            }
+        });
+    }
+
+    // Looks the bitmap up and takes a reference to it in one step, so it can't slip into the
+    // pool in between. The caller releases the reference.
+    private Bitmap getCachedBitmap(String url) {
+        synchronized (mBitmapPool) {
+            Bitmap bitmap = mMemoryCache.get(url);
+            if (bitmap != null) {
+                mBitmapPool.acquire(bitmap);
+            }
+            return bitmap;
+        }
+    }
+
+    private synchronized DiskCache getDiskCache() {
+        // Opening the cache reads its journal, so it's done lazily on a worker thread.
+        if (!mDiskCacheOpened && !mHasQuit) {
+            mDiskCacheOpened = true;
+            try {
+                mDiskCache = DiskCache.acquire(mDiskCacheDirectory, DISK_CACHE_SIZE);
+            } catch (IOException ioe) {
+                Log.e(TAG, "Error opening disk cache, thumbnails will not be persisted", ioe);
+            }
+        }
+        return mDiskCache;
+    }
+
+    // Downloads into the disk cache when it's available and returns the decode of the result,
+    // which runs on the decode pool so the download thread goes back to the network. The
+    // response is streamed to the file through a pooled buffer; without the disk cache it
+    // has to be buffered whole.
+    private DecodeTask download(DownloadTask task) throws IOException {
+        String url = task.mUrl;
+        long startTime = SystemClock.elapsedRealtime();
+        // No validators and no conditional cache here: a Flickr image URL carries the photo's
+        // secret and changes whenever the image does, so a stored thumbnail never goes stale.
+        HttpClient.Response response = HttpClient.getInstance().open(url);
+        task.setResponse(response);
+        byte[] buffer = mBufferPool.getBuf(DECODE_BUFFER_SIZE);
         try {
-            getBitmap(target);
-        } catch (IOException ioe) {
-            Log.e(TAG, "Error downloading image", ioe);
+            if (response.getCode() != HttpURLConnection.HTTP_OK) {
+                throw new IOException(response.getMessage() + ": with " + url);
+            }
+            InputStream in = response.getInputStream();
+            DiskCache diskCache = getDiskCache();
+            DiskCache.Editor editor = diskCache != null ? diskCache.edit(url) : null;
+            if (editor == null) {
+                byte[] bitmapBytes = readFully(in, response.getContentLength(), buffer);
+                recordDownloadTime(SystemClock.elapsedRealtime() - startTime);
+                return new DecodeTask(task, bitmapBytes);
+            }
+            try {
+                OutputStream out = editor.getOutputStream();
+                int bytesRead;
+                while ((bytesRead = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, bytesRead);
+                }
+                // Closes the file as well.
+                editor.commit();
+            } finally {
+                editor.abort();
+            }
+            recordDownloadTime(SystemClock.elapsedRealtime() - startTime);
+            FileInputStream cached = diskCache.openStream(url);
+            if (cached == null) {
+                throw new IOException("Evicted from the disk cache as soon as it was stored: " + url);
+            }
+            return new DecodeTask(task, cached);
+        } finally {
+            task.setResponse(null);
+            mBufferPool.returnBuf(buffer);
+            // Fully read responses give their connection back for the next thumbnail.
+            response.close();
         }
     }
 
-    private Bitmap getBitmap(String url) throws IOException {
-        Bitmap bitmap = mMemoryCache.get(url);
+    private void onDecoded(DownloadTask task, Bitmap bitmap) {
         if (bitmap == null) {
-            byte[] bitmapBytes = new FlickrFetchr().getUrlBytes(url);
-            bitmap = BitmapFactory.decodeByteArray(bitmapBytes, 0, bitmapBytes.length);
-            mMemoryCache.put(url, bitmap);
-            Log.i(TAG, "Bitmap downloaded");
+            Log.e(TAG, "Error decoding image " + task.mUrl);
+            finish(task, null);
+            return;
+        }
+        // Hold a reference until the targets have theirs, the cache may evict it right away.
+        mBitmapPool.acquire(bitmap);
+        mMemoryCache.put(task.mUrl, bitmap);
+        finish(task, bitmap);
+        mBitmapPool.release(bitmap);
+    }
+
+    private synchronized void recordDownloadTime(long downloadMs) {
+        if (mAverageDownloadMs <= 0f) {
+            mAverageDownloadMs = downloadMs;
         } else {
-            Log.i(TAG, "Bitmap cached out");
+            mAverageDownloadMs += DOWNLOAD_TIME_SMOOTHING * (downloadMs - mAverageDownloadMs);
+        }
+    }
+
+    private Bitmap decodeCachedBitmap(final FileInputStream in) throws IOException {
+        ThumbnailDecoder.StreamSource source = new ThumbnailDecoder.StreamSource() {
+            @Override
+            public InputStream open() throws IOException {
+                in.getChannel().position(0);
+                return in;
+            }
+        };
+        byte[] tempStorage = mBufferPool.getBuf(DECODE_BUFFER_SIZE);
+        try {
+            return ThumbnailDecoder.decode(source, mTargetWidth, mTargetHeight,
+                    DECODE_OPAQUE_AS_RGB_565, mBitmapPool, tempStorage);
+        } finally {
+            mBufferPool.returnBuf(tempStorage);
+            in.close();
+        }
+    }
+
+    private void removeFromDiskCache(String url) throws IOException {
+        DiskCache diskCache = getDiskCache();
+        if (diskCache != null) {
+            diskCache.remove(url);
+        }
+    }
+
+    private static void closeQuietly(InputStream in) {
+        try {
+            in.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static byte[] readFully(InputStream in, int contentLength, byte[] buffer) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(contentLength > 0 ? contentLength : buffer.length);
+        int bytesRead;
+        while ((bytesRead = in.read(buffer)) > 0) {
+            out.write(buffer, 0, bytesRead);
+        }
+        return out.toByteArray();
+    }
+
+    // Lower is sooner. Cells on screen come first, then cells ahead of the viewport in the scroll
+    // direction by distance, then cells behind it. Bound cells always beat preloads of the same rank.
+    private int calculatePriority(int position, boolean preload) {
+        int rank;
+        synchronized (mViewportLock) {
+            if (position >= mFirstVisiblePosition && position <= mLastVisiblePosition) {
+                rank = 0;
+            } else {
+                boolean below = position > mLastVisiblePosition;
+                int distance = below ? position - mLastVisiblePosition : mFirstVisiblePosition - position;
+                boolean ahead = below == (mScrollDirection > 0);
+                rank = ahead ? distance : BEHIND_VIEWPORT_PENALTY + distance;
+            }
+        }
+        return rank * 2 + (preload ? 1 : 0);
+    }
+
+    private static ThreadPoolExecutor newWorkerPool(final String name, int threadCount,
+                                                    BlockingQueue<Runnable> workQueue,
+                                                    RejectedExecutionHandler rejectedHandler) {
+        ThreadFactory threadFactory = new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger(1);
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, name + " #" + mCount.getAndIncrement());
+            }
+        };
+        return new ThreadPoolExecutor(threadCount, threadCount, 0L, TimeUnit.MILLISECONDS,
+                workQueue, threadFactory, rejectedHandler);
+    }
+
+    // One download per URL, shared by every target and preload that asked for it.
+    private class DownloadTask implements Runnable, Comparable<DownloadTask> {
+
+        private final String mUrl;
+        private final long mSequence;
+        // Guarded by mInFlight.
+        private final List<T> mTargets = new ArrayList<>(1);
+        private boolean mPreload = false;
+        private int mPosition;
+        private volatile int mPriority;
+        private volatile boolean mCancelled = false;
+        private HttpClient.Response mResponse;
+
+        DownloadTask(String url, int position) {
+            mUrl = url;
+            mPosition = position;
+            mSequence = mTaskSequence.getAndIncrement();
+        }
+
+        // Changes the priority; must not be called while the task is in the download queue.
+        void attach(T target, int position) {
+            if (target == null) {
+                mPreload = true;
+            } else if (!mTargets.contains(target)) {
+                mTargets.add(target);
+            }
+            if (mTargets.isEmpty() || target != null) {
+                mPosition = position;
+            }
+            updatePriority();
+        }
+
+        boolean isWanted() {
+            if (mPreload) {
+                return true;
+            }
+            for (T target : mTargets) {
+                if (!isStale(target, mUrl)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        synchronized void setResponse(HttpClient.Response response) {
+            mResponse = response;
+            if (mCancelled && response != null) {
+                response.cancel();
+            }
+        }
+
+        // Cancelling the response from another thread makes the blocked read on the worker fail.
+        synchronized void cancel() {
+            mCancelled = true;
+            if (mResponse != null) {
+                mResponse.cancel();
+            }
+        }
+
+        boolean isCancelled() {
+            return mCancelled;
+        }
+
+        void updatePriority() {
+            mPriority = calculatePriority(mPosition, mTargets.isEmpty());
+        }
+
+        @Override
+        public int compareTo(DownloadTask other) {
+            if (mPriority != other.mPriority) {
+                return mPriority < other.mPriority ? -1 : 1;
+            }
+            return mSequence < other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+        }
+
+        @Override
+        public void run() {
+            boolean wanted;
+            synchronized (mInFlight) {
+                wanted = !mHasQuit && !mCancelled && isWanted();
+            }
+            if (!wanted) {
+                if (!mCancelled) {
+                    mCancelledCount.incrementAndGet();
+                }
+                finish(this, null);
+                return;
+            }
+            Bitmap bitmap = getCachedBitmap(mUrl);
+            if (bitmap != null) {
+                Log.i(TAG, "Bitmap cached out");
+                finish(this, bitmap);
+                mBitmapPool.release(bitmap);
+                return;
+            }
+            try {
+                DiskCache diskCache = getDiskCache();
+                FileInputStream cached = diskCache != null ? diskCache.openStream(mUrl) : null;
+                if (cached != null) {
+                    Log.i(TAG, "Bitmap read from disk cache");
+                    mDecodeExecutor.execute(new DecodeTask(this, cached));
+                    return;
+                }
+                DecodeTask decodeTask = download(this);
+                Log.i(TAG, "Bitmap downloaded");
+                mDecodeExecutor.execute(decodeTask);
+            } catch (IOException ioe) {
+                if (mCancelled) {
+                    Log.i(TAG, "Download cancelled: " + mUrl);
+                } else {
+                    Log.e(TAG, "Error downloading image", ioe);
+                }
+                finish(this, null);
+            }
+        }
+    }
+
+    // Decodes a disk cache entry or a download that couldn't be stored, off the download threads.
+    private class DecodeTask implements Runnable {
+
+        private final DownloadTask mDownloadTask;
+        // One or the other.
+        private final FileInputStream mCachedStream;
+        private final byte[] mData;
+
+        DecodeTask(DownloadTask downloadTask, FileInputStream cachedStream) {
+            mDownloadTask = downloadTask;
+            mCachedStream = cachedStream;
+            mData = null;
+        }
+
+        DecodeTask(DownloadTask downloadTask, byte[] data) {
+            mDownloadTask = downloadTask;
+            mCachedStream = null;
+            mData = data;
+        }
+
+        @Override
+        public void run() {
+            if (mHasQuit || mDownloadTask.isCancelled()) {
+                discard();
+                return;
+            }
+            try {
+                Bitmap bitmap;
+                if (mCachedStream != null) {
+                    bitmap = decodeCachedBitmap(mCachedStream);
+                    if (bitmap == null) {
+                        // Not an image; don't serve it from disk again.
+                        removeFromDiskCache(mDownloadTask.mUrl);
+                    }
+                } else {
+                    bitmap = ThumbnailDecoder.decode(mData, mTargetWidth, mTargetHeight,
+                            DECODE_OPAQUE_AS_RGB_565, mBitmapPool);
+                }
+                onDecoded(mDownloadTask, bitmap);
+            } catch (IOException | IllegalArgumentException e) {
+                Log.e(TAG, "Error decoding image " + mDownloadTask.mUrl, e);
+                finish(mDownloadTask, null);
+            }
+        }
+
+        // Also where tasks the decode pool turns away after quit() end up.
+        void discard() {
+            if (mCachedStream != null) {
+                closeQuietly(mCachedStream);
+            }
+            finish(mDownloadTask, null);
         }
-        return bitmap;
     }
 
 }
@@ -0,0 +1,93 @@
+package ru.coffeeplanter.photogallery;
+
+// Predicts which grid positions are about to scroll into view from the scroll velocity,
+// and how far ahead it's worth prefetching from how fast thumbnails are downloading.
+public class ThumbnailPrefetcher {
+
+    // How far into the future to look when sizing the window.
+    private static final float LOOKAHEAD_SECONDS = 1.5f;
+    private static final int MIN_PREFETCH_COUNT = 10;
+    private static final int MAX_PREFETCH_COUNT = 90;
+    // Weight of the newest sample in the smoothed velocity.
+    private static final float VELOCITY_SMOOTHING = 0.3f;
+    // Longer gaps between scroll events mean the scroll started over.
+    private static final long MAX_SAMPLE_INTERVAL_MS = 200;
+
+    private float mVelocity = 0f; // Items per second, signed with the scroll direction.
+    private long mLastScrollTime = -1;
+    private int mDirection = 1;
+    // Edge of what has already been handed out in the current direction: the end of it
+    // when scrolling down, the start of it when scrolling up.
+    private int mPrefetchedTo = 0;
+    private int mPrefetchedFrom = Integer.MAX_VALUE;
+
+    // Returns the positions to prefetch as {from, to} with to exclusive, or null if everything
+    // in the window has already been requested.
+    public int[] onScrolled(int dy, int rowHeight, int spanCount, int firstVisiblePosition,
+                            int lastVisiblePosition, int itemCount, float throughput, long now) {
+        if (dy != 0 && rowHeight > 0) {
+            long interval = now - mLastScrollTime;
+            float itemsScrolled = (float) dy / rowHeight * spanCount;
+            if (mLastScrollTime < 0 || interval <= 0 || interval > MAX_SAMPLE_INTERVAL_MS) {
+                mVelocity = 0f;
+            } else {
+                float sample = itemsScrolled * 1000f / interval;
+                mVelocity += VELOCITY_SMOOTHING * (sample - mVelocity);
+            }
+            mLastScrollTime = now;
+            int direction = dy > 0 ? 1 : -1;
+            if (direction != mDirection) {
+                mDirection = direction;
+                resetRange();
+            }
+        }
+        if (firstVisiblePosition < 0 || lastVisiblePosition < 0) {
+            return null;
+        }
+        int window = calculateWindow(throughput);
+        int from;
+        int to;
+        if (mDirection > 0) {
+            from = Math.max(lastVisiblePosition + 1, mPrefetchedTo);
+            to = Math.min(itemCount, lastVisiblePosition + 1 + window);
+        } else {
+            from = Math.max(0, firstVisiblePosition - window);
+            to = Math.min(firstVisiblePosition, mPrefetchedFrom);
+        }
+        if (from >= to) {
+            return null;
+        }
+        if (mDirection > 0) {
+            mPrefetchedTo = to;
+        } else {
+            mPrefetchedFrom = from;
+        }
+        return new int[] {from, to};
+    }
+
+    // Forget what was requested, e.g. after the list or the queue was reset.
+    public void reset() {
+        mVelocity = 0f;
+        mLastScrollTime = -1;
+        resetRange();
+    }
+
+    public float getVelocity() {
+        return mVelocity;
+    }
+
+    private void resetRange() {
+        mPrefetchedTo = 0;
+        mPrefetchedFrom = Integer.MAX_VALUE;
+    }
+
+    // Cover whatever will scroll into view within the lookahead, but no more than the
+    // downloader can actually fetch in that time.
+    int calculateWindow(float throughput) {
+        int needed = (int) Math.ceil(Math.abs(mVelocity) * LOOKAHEAD_SECONDS);
+        int affordable = (int) (throughput * LOOKAHEAD_SECONDS);
+        int window = Math.min(needed, affordable);
+        return Math.max(MIN_PREFETCH_COUNT, Math.min(MAX_PREFETCH_COUNT, window));
+    }
+
+}
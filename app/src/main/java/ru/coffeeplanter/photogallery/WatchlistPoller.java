@@ -0,0 +1,245 @@
+package ru.coffeeplanter.photogallery;
+
+import android.content.Context;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// One background poll of every watched query. First pages are fetched concurrently and
+// checked against each query's seen ids; a photo found by several queries is counted
+// and prefetched once. List requests come first, thumbnails get whatever is left of
+// the cycle's request and byte budget. Blocks, so it's meant for the poll service.
+public class WatchlistPoller {
+
+    private static final String TAG = "WatchlistPoller";
+    private static final int THREAD_COUNT = 3;
+    static final int MAX_REQUESTS_PER_CYCLE = 40;
+    static final long MAX_BYTES_PER_CYCLE = 2 * 1024 * 1024;
+    private static final long CYCLE_TIMEOUT_MS = TimeUnit.MINUTES.toMillis(1);
+
+    private final GalleryStore mGalleryStore;
+    private final SearchResultCache mSearchResultCache;
+    private final File mThumbnailDirectory;
+
+    public WatchlistPoller(Context context) {
+        mGalleryStore = GalleryStore.get(context);
+        mSearchResultCache = SearchResultCache.get(context);
+        mThumbnailDirectory = new File(context.getCacheDir(), ThumbnailDownloader.DISK_CACHE_DIRECTORY);
+    }
+
+    public Result poll(Collection<String> queries) {
+        // Queries that differ in case only are the same query.
+        Map<String, String> queriesByKey = new LinkedHashMap<>();
+        for (String query : queries) {
+            String queryKey = GalleryStore.getQueryKey(query);
+            if (!queriesByKey.containsKey(queryKey) && queriesByKey.size() < MAX_REQUESTS_PER_CYCLE) {
+                queriesByKey.put(queryKey, query);
+            }
+        }
+        List<QueryResult> queryResults = fetchAll(queriesByKey);
+
+        long listBytes = 0;
+        Map<String, GalleryItem> newItems = new LinkedHashMap<>();
+        for (QueryResult queryResult : queryResults) {
+            listBytes += queryResult.mByteCount;
+            // Only results that made it in time are remembered, or photos of a query that
+            // timed out would count as seen without having been reported.
+            if (queryResult.mSeenIds != null) {
+                mGalleryStore.putSeenIds(queryResult.getQueryKey(), queryResult.mSeenIds);
+            }
+            for (GalleryItem item : queryResult.getNewItems()) {
+                if (!newItems.containsKey(item.getId())) {
+                    newItems.put(item.getId(), item);
+                }
+            }
+        }
+
+        DiskPrefetcher prefetcher = new DiskPrefetcher(mThumbnailDirectory);
+        prefetcher.setRequestLimit(MAX_REQUESTS_PER_CYCLE - queriesByKey.size());
+        prefetcher.setByteLimit(Math.max(0, MAX_BYTES_PER_CYCLE - listBytes));
+        if (!newItems.isEmpty()) {
+            prefetcher.prefetch(new ArrayList<>(newItems.values()));
+        }
+        Result result = new Result(queryResults, new ArrayList<>(newItems.values()),
+                queriesByKey.size() + prefetcher.getRequestCount(), listBytes + prefetcher.getBytesDownloaded());
+        Log.i(TAG, "Queries: " + queryResults.size() + ", new photos: " + newItems.size()
+                + ", thumbnails prefetched: " + prefetcher.getStoredCount()
+                + ", already cached: " + prefetcher.getCachedCount()
+                + ", requests: " + result.getRequestCount() + "/" + MAX_REQUESTS_PER_CYCLE
+                + ", bytes: " + result.getByteCount() + "/" + MAX_BYTES_PER_CYCLE);
+        return result;
+    }
+
+    private List<QueryResult> fetchAll(Map<String, String> queriesByKey) {
+        ThreadPoolExecutor executor = newExecutor();
+        Map<String, Future<QueryResult>> futures = new LinkedHashMap<>();
+        for (final Map.Entry<String, String> query : queriesByKey.entrySet()) {
+            futures.put(query.getKey(), executor.submit(new Callable<QueryResult>() {
+                @Override
+                public QueryResult call() {
+                    return pollQuery(query.getKey(), query.getValue());
+                }
+            }));
+        }
+        executor.shutdown();
+        long deadline = System.currentTimeMillis() + CYCLE_TIMEOUT_MS;
+        List<QueryResult> queryResults = new ArrayList<>();
+        for (Map.Entry<String, Future<QueryResult>> future : futures.entrySet()) {
+            try {
+                long timeoutMs = Math.max(0, deadline - System.currentTimeMillis());
+                queryResults.add(future.getValue().get(timeoutMs, TimeUnit.MILLISECONDS));
+            } catch (ExecutionException | TimeoutException e) {
+                Log.e(TAG, "Error polling " + future.getKey(), e);
+                queryResults.add(QueryResult.failed(future.getKey(), queriesByKey.get(future.getKey())));
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                queryResults.add(QueryResult.failed(future.getKey(), queriesByKey.get(future.getKey())));
+            }
+        }
+        executor.shutdownNow();
+        return queryResults;
+    }
+
+    // Doesn't store the seen ids, poll() does that for the results it collected.
+    private QueryResult pollQuery(String queryKey, String query) {
+        PhotoListPage page = PhotoListPage.fetch(
+                QueryPreferences.RECENT_PHOTOS_QUERY.equals(query) ? null : query, 1);
+        if (page == null) {
+            return QueryResult.failed(queryKey, query);
+        }
+        List<GalleryItem> items = page.getItems();
+        // The gallery opens with the stored pages, so it shows the new photos right away.
+        mSearchResultCache.put(queryKey, page);
+        SeenPhotoIds seenIds = mGalleryStore.getSeenIds(queryKey);
+        boolean isFirstPoll = seenIds.isEmpty();
+        List<GalleryItem> newItems = seenIds.getUnseen(items);
+        seenIds.addAll(items);
+        if (isFirstPoll) {
+            // Nothing to compare with yet; whatever is there now counts as seen.
+            Log.i(TAG, "First poll of " + queryKey + ", " + seenIds.size() + " ids remembered");
+            newItems.clear();
+        }
+        return new QueryResult(queryKey, query, newItems, seenIds, page.getByteCount());
+    }
+
+    private static ThreadPoolExecutor newExecutor() {
+        ThreadFactory threadFactory = new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger(1);
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "WatchlistPoll #" + mCount.getAndIncrement());
+            }
+        };
+        return new ThreadPoolExecutor(THREAD_COUNT, THREAD_COUNT, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), threadFactory);
+    }
+
+    public static class QueryResult {
+
+        private final String mQueryKey;
+        private final String mQuery;
+        private final List<GalleryItem> mNewItems;
+        // Null if the query failed.
+        private final SeenPhotoIds mSeenIds;
+        private final long mByteCount;
+
+        private QueryResult(String queryKey, String query, List<GalleryItem> newItems, SeenPhotoIds seenIds,
+                            long byteCount) {
+            mQueryKey = queryKey;
+            mQuery = query;
+            mNewItems = newItems;
+            mSeenIds = seenIds;
+            mByteCount = byteCount;
+        }
+
+        private static QueryResult failed(String queryKey, String query) {
+            return new QueryResult(queryKey, query, Collections.<GalleryItem>emptyList(), null, 0);
+        }
+
+        public String getQueryKey() {
+            return mQueryKey;
+        }
+
+        // QueryPreferences.RECENT_PHOTOS_QUERY for the recent photos.
+        public String getQuery() {
+            return mQuery;
+        }
+
+        public List<GalleryItem> getNewItems() {
+            return mNewItems;
+        }
+
+        public boolean isFailed() {
+            return mSeenIds == null;
+        }
+    }
+
+    public static class Result {
+
+        private final List<QueryResult> mQueryResults;
+        private final List<GalleryItem> mNewItems;
+        private final int mRequestCount;
+        private final long mByteCount;
+
+        private Result(List<QueryResult> queryResults, List<GalleryItem> newItems, int requestCount, long byteCount) {
+            mQueryResults = queryResults;
+            mNewItems = newItems;
+            mRequestCount = requestCount;
+            mByteCount = byteCount;
+        }
+
+        public List<QueryResult> getQueryResults() {
+            return mQueryResults;
+        }
+
+        // New photos of every query, each once.
+        public List<GalleryItem> getNewItems() {
+            return mNewItems;
+        }
+
+        // True if there were queries to poll but none of them could be.
+        public boolean isFailed() {
+            if (mQueryResults.isEmpty()) {
+                return false;
+            }
+            for (QueryResult queryResult : mQueryResults) {
+                if (!queryResult.isFailed()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public int getRequestCount() {
+            return mRequestCount;
+        }
+
+        public long getByteCount() {
+            return mByteCount;
+        }
+    }
+
+}
@@ -0,0 +1,163 @@
+package ru.coffeeplanter.photogallery;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class GalleryItemTest {
+
+    private static final int ITEM_COUNT = 1000;
+    private static final int OWNER_COUNT = 200;
+
+    @Test
+    public void flickrUrls_areRebuiltExactly() {
+        String[] urls = {
+                "https://farm1.staticflickr.com/2/30001_abcdef1234_m.jpg",
+                "https://live.staticflickr.com/65535/30001_00000f1234_m.jpg",
+                "https://farm9.staticflickr.com/8/30001_abcdef1234.jpg",
+        };
+        for (String url : urls) {
+            GalleryItem item = new GalleryItem("caption", "30001", url);
+            assertEquals(url, item.getUrl());
+        }
+    }
+
+    @Test
+    public void otherUrls_areKeptAsTheyAre() {
+        String[] urls = {
+                "https://example.com/photo.jpg",
+                "https://farm1.staticflickr.com/2/30002_abcdef1234_m.jpg",
+                "https://farm1.staticflickr.com/2/30001_ABCDEF1234_m.jpg",
+                "https://farm1.staticflickr.com/+2/30001_abcdef1234_m.jpg",
+                "30001_abcdef1234_m.jpg",
+        };
+        for (String url : urls) {
+            GalleryItem item = new GalleryItem("caption", "30001", url);
+            assertEquals(url, item.getUrl());
+        }
+        assertNull(new GalleryItem("caption", "30001", null).getUrl());
+    }
+
+    @Test
+    public void sizedUrls_swapOnlyTheSizeSuffix() {
+        GalleryItem item = new GalleryItem("caption", "30001",
+                "https://farm1.staticflickr.com/2/30001_00abcdef12_m.jpg");
+        assertEquals("https://farm1.staticflickr.com/2/30001_00abcdef12_b.jpg", item.getSizedUrl('b'));
+        assertNull(new GalleryItem("caption", "30001",
+                "https://farm9.staticflickr.com/8/30001_abcdef1234.jpg").getSizedUrl('b'));
+        assertNull(new GalleryItem("caption", "30001", "https://example.com/photo.jpg").getSizedUrl('b'));
+    }
+
+    @Test
+    public void ids_thatAreNotPlainNumbers_areKeptAsTheyAre() {
+        assertEquals("abc", new GalleryItem(null, "abc", null).getId());
+        assertEquals("007", new GalleryItem(null, "007", null).getId());
+        assertEquals(-1, new GalleryItem(null, "007", null).getNumericId());
+        assertNull(new GalleryItem(null, null, null).getId());
+        assertEquals(30001, new GalleryItem(null, "30001", null).getNumericId());
+    }
+
+    @Test
+    public void setters_keepWorkingInAnyOrder() {
+        String url = "https://farm1.staticflickr.com/2/30001_abcdef1234_m.jpg";
+        GalleryItem item = new GalleryItem();
+        item.setUrl(url);
+        item.setId("30001");
+        item.setOwner("12345678@N00");
+        assertEquals(url, item.getUrl());
+        assertEquals("30001", item.getId());
+        assertEquals("12345678@N00", item.getOwner());
+        item.setId("30002");
+        assertEquals(url, item.getUrl());
+    }
+
+    @Test
+    public void sameIdAndUrl_areRecognisedWithoutBuildingStrings() {
+        GalleryItem a = new GalleryItem("a", "30001", "https://farm1.staticflickr.com/2/30001_abcdef1234_m.jpg");
+        GalleryItem b = new GalleryItem("b", "30001", "https://farm1.staticflickr.com/2/30001_abcdef1234_m.jpg");
+        GalleryItem c = new GalleryItem("c", "30001", "https://farm1.staticflickr.com/3/30001_abcdef1234_m.jpg");
+        assertTrue(a.hasSameId(b));
+        assertTrue(a.hasSameUrl(b));
+        assertFalse(a.hasSameUrl(c));
+        assertFalse(new GalleryItem(null, null, null).hasSameId(new GalleryItem(null, null, null)));
+    }
+
+    @Test
+    public void gson_bindsThroughTheParser() {
+        Gson gson = new Gson();
+        GalleryItem item = gson.fromJson("{\"id\":\"30001\",\"title\":\"t\",\"owner\":\"o\","
+                + "\"url_s\":\"https://farm1.staticflickr.com/2/30001_abcdef1234_m.jpg\",\"farm\":1}", GalleryItem.class);
+        assertEquals("30001", item.getId());
+        assertEquals("t", item.getCaption());
+        assertEquals("o", item.getOwner());
+        assertEquals("https://farm1.staticflickr.com/2/30001_abcdef1234_m.jpg", item.getUrl());
+        GalleryItem copy = gson.fromJson(gson.toJson(item), GalleryItem.class);
+        assertTrue(item.hasSameId(copy));
+        assertTrue(item.hasSameUrl(copy));
+    }
+
+    // Generated the way a parser would hand them over: every string a fresh instance.
+    @Test
+    public void fields_roundTripAcrossManyItems() {
+        List<GalleryItem> items = new ArrayList<>(ITEM_COUNT);
+        for (int i = 0; i < ITEM_COUNT; i++) {
+            GalleryItem item = new GalleryItem();
+            item.setId(id(i));
+            item.setCaption(caption(i));
+            item.setUrl(url(i));
+            item.setOwner(owner(i));
+            items.add(item);
+        }
+        for (int i = 0; i < ITEM_COUNT; i++) {
+            GalleryItem item = items.get(i);
+            assertEquals(id(i), item.getId());
+            assertEquals(Long.parseLong(id(i)), item.getNumericId());
+            assertEquals(caption(i), item.getCaption());
+            assertEquals(url(i), item.getUrl());
+            assertEquals(owner(i), item.getOwner());
+            // Equal owners share one instance.
+            assertSame(items.get(i % OWNER_COUNT).getOwner(), item.getOwner());
+        }
+    }
+
+    @Test
+    public void gson_writesTheFieldsTheParserReads() {
+        GalleryItem item = new GalleryItem("t", "30001", "https://farm1.staticflickr.com/2/30001_00abcdef12_m.jpg");
+        item.setOwner("o");
+        JsonObject json = new JsonParser().parse(new Gson().toJson(item)).getAsJsonObject();
+        assertEquals(4, json.entrySet().size());
+        assertEquals("30001", json.get("id").getAsString());
+        assertEquals("t", json.get("title").getAsString());
+        assertEquals("https://farm1.staticflickr.com/2/30001_00abcdef12_m.jpg", json.get("url_s").getAsString());
+        assertEquals("o", json.get("owner").getAsString());
+    }
+
+    static String id(int i) {
+        return String.valueOf(40000000000L + i);
+    }
+
+    static String caption(int i) {
+        return "Photo " + i;
+    }
+
+    static String owner(int i) {
+        return new StringBuilder().append(10000000 + i % OWNER_COUNT).append("@N00").toString();
+    }
+
+    static String url(int i) {
+        return "https://farm" + (1 + i % 9) + ".staticflickr.com/" + (1000 + i % 50) + "/" + id(i)
+                + "_" + String.format("%010x", 0x1234567890L + i * 7919L) + "_m.jpg";
+    }
+
+}
@@ -0,0 +1,89 @@
+package ru.coffeeplanter.photogallery;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class PhotoListParserTest {
+
+    private static final int ITEMS_PER_PAGE = 500;
+
+    @Test
+    public void parse_readsItemsAndPageMetadata() throws Exception {
+        PhotoListPage page = PhotoListParser.parse(new StringReader(buildResponse(3)));
+        assertEquals(3, page.getItems().size());
+        assertArrayEquals(new int[] {42, 7, 3}, page.getParameters());
+        GalleryItem item = page.getItems().get(1);
+        assertEquals("30001", item.getId());
+        assertEquals("Photo \"1\" \u00e9t\u00e9", item.getCaption());
+        assertEquals("12345678@N00", item.getOwner());
+        assertEquals("https://farm1.staticflickr.com/2/30001_abcdef1234_m.jpg", item.getUrl());
+    }
+
+    @Test
+    public void parse_keepsItemsWithoutUrl() throws Exception {
+        String response = "{\"photos\":{\"page\":\"1\",\"pages\":\"1\",\"perpage\":1,\"photo\":"
+                + "[{\"id\":\"1\",\"title\":\"\",\"owner\":\"o\"}]},\"stat\":\"ok\"}";
+        PhotoListPage page = PhotoListParser.parse(new StringReader(response));
+        assertEquals(1, page.getItems().size());
+        assertNull(page.getItems().get(0).getUrl());
+        assertArrayEquals(new int[] {1, 1, 1}, page.getParameters());
+    }
+
+    @Test(expected = java.io.IOException.class)
+    public void parse_failsOnErrorResponse() throws Exception {
+        PhotoListParser.parse(new StringReader("{\"stat\":\"fail\",\"code\":100,\"message\":\"Invalid API Key\"}"));
+    }
+
+    // A large page comes out the same as reading the body into a tree and binding it with Gson.
+    @Test
+    public void parse_matchesTreeBinding() throws Exception {
+        String response = buildResponse(ITEMS_PER_PAGE);
+        PhotoListPage treePage = parseWithTree(new Gson(), response);
+        PhotoListPage page = PhotoListParser.parse(new StringReader(response));
+
+        assertArrayEquals(treePage.getParameters(), page.getParameters());
+        assertEquals(treePage.getItems().size(), page.getItems().size());
+        for (int i = 0; i < page.getItems().size(); i++) {
+            assertEquals(treePage.getItems().get(i).getId(), page.getItems().get(i).getId());
+            assertEquals(treePage.getItems().get(i).getUrl(), page.getItems().get(i).getUrl());
+        }
+    }
+
+    // What a Gson binding of the whole response does: string -> tree -> objects.
+    static PhotoListPage parseWithTree(Gson gson, String response) {
+        JsonObject photos = new JsonParser().parse(response).getAsJsonObject().getAsJsonObject("photos");
+        GalleryItem[] items = gson.fromJson(photos.getAsJsonArray("photo"), GalleryItem[].class);
+        return new PhotoListPage(Arrays.asList(items), photos.get("pages").getAsInt(),
+                photos.get("page").getAsInt(), photos.get("perpage").getAsInt());
+    }
+
+    // Shaped like a flickr.photos.search response with extras=url_s.
+    static String buildResponse(int itemCount) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"photos\":{\"page\":7,\"pages\":42,\"perpage\":").append(itemCount)
+                .append(",\"total\":\"").append(itemCount * 42).append("\",\"photo\":[");
+        for (int i = 0; i < itemCount; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            String id = String.valueOf(30000 + i);
+            sb.append("{\"id\":\"").append(id)
+                    .append("\",\"owner\":\"12345678@N00\",\"secret\":\"abcdef1234\",\"server\":\"2\",\"farm\":1,")
+                    .append("\"title\":\"Photo \\\"").append(i).append("\\\" \\u00e9t\\u00e9\",")
+                    .append("\"ispublic\":1,\"isfriend\":0,\"isfamily\":0,")
+                    .append("\"url_s\":\"https:\\/\\/farm1.staticflickr.com\\/2\\/").append(id).append("_abcdef1234_m.jpg\",")
+                    .append("\"height_s\":\"180\",\"width_s\":\"240\"}");
+        }
+        sb.append("]},\"stat\":\"ok\"}");
+        return sb.toString();
+    }
+
+}
@@ -0,0 +1,39 @@
+package ru.coffeeplanter.photogallery;
+
+import org.junit.Test;
+
+import java.io.StringReader;
+
+import static org.junit.Assert.*;
+
+public class PhotoSizeTest {
+
+    @Test
+    public void parseLargest_picksTheMostPixelsAmongPhotoSizes() throws Exception {
+        String response = "{\"sizes\":{\"canblog\":0,\"candownload\":1,\"size\":["
+                + "{\"label\":\"Small\",\"width\":240,\"height\":160,\"source\":\"https://live.staticflickr.com/2/30001_abcdef1234_m.jpg\",\"media\":\"photo\"},"
+                + "{\"label\":\"Large 2048\",\"width\":\"2048\",\"height\":\"1365\",\"source\":\"https://live.staticflickr.com/2/30001_0123456789_k.jpg\",\"media\":\"photo\"},"
+                + "{\"label\":\"Original\",\"width\":\"6000\",\"height\":\"4000\",\"source\":\"https://live.staticflickr.com/2/30001_fedcba9876_o.jpg\",\"media\":\"photo\"},"
+                + "{\"label\":\"Large 1024\",\"width\":1024,\"height\":683,\"source\":\"https://live.staticflickr.com/2/30001_abcdef1234_b.jpg\",\"media\":\"photo\"}"
+                + "]},\"stat\":\"ok\"}";
+        PhotoSize largest = PhotoSize.parseLargest(new StringReader(response));
+        assertEquals("https://live.staticflickr.com/2/30001_fedcba9876_o.jpg", largest.getSource());
+        assertEquals(6000, largest.getWidth());
+        assertEquals(4000, largest.getHeight());
+    }
+
+    @Test
+    public void parseLargest_skipsVideoSizes() throws Exception {
+        String response = "{\"sizes\":{\"size\":["
+                + "{\"label\":\"Medium\",\"width\":500,\"height\":333,\"source\":\"https://live.staticflickr.com/2/30001_abcdef1234.jpg\",\"media\":\"video\"},"
+                + "{\"label\":\"Site MP4\",\"width\":1280,\"height\":720,\"source\":\"https://www.flickr.com/photos/o/30001/play/site/abcdef1234/\",\"media\":\"video\"}"
+                + "]},\"stat\":\"ok\"}";
+        assertNull(PhotoSize.parseLargest(new StringReader(response)));
+    }
+
+    @Test(expected = java.io.IOException.class)
+    public void parseLargest_failsOnErrorResponse() throws Exception {
+        PhotoSize.parseLargest(new StringReader("{\"stat\":\"fail\",\"code\":1,\"message\":\"Photo not found\"}"));
+    }
+
+}